@@ -0,0 +1,371 @@
+package processing.core;
+
+/**
+ * Android port of the Mobile Processing project - http://mobile.processing.org
+ *
+ * The author of Mobile Processing is Francis Li (mail@francisli.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.Bitmap.Config;
+
+/**
+ * Packs many small images into a few large page bitmaps, so that sprites
+ * share one native bitmap instead of carrying one each. Every image added
+ * becomes a Region, an immutable PImage drawn out of its page with the
+ * usual image() calls, or many at once with images().
+ *
+ * Images are placed with a skyline packer: each page keeps the height of
+ * its filled area along its width, and an image goes where its top would
+ * be lowest. Adding images tallest first packs them tightest, which
+ * pack() does for a whole set at once.
+ */
+public class PAtlas {
+
+    public static final int DEFAULT_PAGE_SIZE = 1024;
+
+    //// transparent pixels kept between regions so that filtered draws do not bleed
+    private static final int PADDING = 1;
+
+    protected final int pageWidth;
+    protected final int pageHeight;
+    protected final ArrayList<Page> pages;
+    protected final HashMap<String, Region> names;
+
+    //// bytes the images took as separate bitmaps
+    protected int sourceBytes;
+
+    public PAtlas() {
+        this(DEFAULT_PAGE_SIZE, DEFAULT_PAGE_SIZE);
+    }
+
+    public PAtlas(int pageWidth, int pageHeight) {
+        this.pageWidth = pageWidth;
+        this.pageHeight = pageHeight;
+        pages = new ArrayList<Page>();
+        names = new HashMap<String, Region>();
+    }
+
+    /**
+     * Copies the image into a page, opening a new page if none has room.
+     */
+    public Region add(PImage img) {
+        int width = img.width + PADDING;
+        int height = img.height + PADDING;
+        if ((width > pageWidth) || (height > pageHeight)) {
+            throw new IllegalArgumentException("Image larger than an atlas page");
+        }
+        Page page = null;
+        int position = -1;
+        for (int i = 0, length = pages.size(); (i < length) && (position < 0); i++) {
+            page = pages.get(i);
+            position = page.skyline.place(width, height);
+        }
+        if (position < 0) {
+            page = new Page(pages.size(), Bitmap.createBitmap(pageWidth, pageHeight, Config.ARGB_8888),
+                            new Skyline(pageWidth, pageHeight));
+            pages.add(page);
+            position = page.skyline.place(width, height);
+        }
+        int x = position >>> 16;
+        int y = position & 0xffff;
+        page.g.drawBitmap(img.bitmap(), x, y, null);
+        page.used += img.width * img.height;
+        sourceBytes += img.width * img.height * 4;
+        return new Region(page, x, y, img.width, img.height);
+    }
+
+    /**
+     * Adds the image under a name that get() finds it by.
+     */
+    public Region add(String name, PImage img) {
+        Region region = add(img);
+        names.put(name, region);
+        return region;
+    }
+
+    /**
+     * Adds the images tallest first, returning their regions in the order
+     * given. Names may be null.
+     */
+    public Region[] pack(String[] names, PImage[] images) {
+        int length = images.length;
+        Integer[] order = new Integer[length];
+        for (int i = 0; i < length; i++) {
+            order[i] = Integer.valueOf(i);
+        }
+        final PImage[] sorted = images;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return sorted[b.intValue()].height - sorted[a.intValue()].height;
+            }
+        });
+        Region[] regions = new Region[length];
+        int index;
+        for (int i = 0; i < length; i++) {
+            index = order[i].intValue();
+            if ((names != null) && (names[index] != null)) {
+                regions[index] = add(names[index], images[index]);
+            } else {
+                regions[index] = add(images[index]);
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Returns the region added under the name, or null.
+     */
+    public Region get(String name) {
+        return names.get(name);
+    }
+
+    /**
+     * Returns the number of pages.
+     */
+    public int pages() {
+        return pages.size();
+    }
+
+    /**
+     * Returns the fraction of a page covered by images, from 0 to 1.
+     */
+    public float fill(int page) {
+        return pages.get(page).used / (float) (pageWidth * pageHeight);
+    }
+
+    /**
+     * Returns the number of bytes taken by the pages.
+     */
+    public int bytes() {
+        return pages.size() * pageWidth * pageHeight * 4;
+    }
+
+    /**
+     * Returns the number of bytes saved over keeping every image in its
+     * own bitmap, which is negative while the pages are mostly empty.
+     */
+    public int bytesSaved() {
+        return sourceBytes - bytes();
+    }
+
+    /**
+     * Reads the names listed in a manifest, one per line. Blank lines and
+     * lines starting with # are skipped.
+     */
+    public static String[] manifest(InputStream is) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+        ArrayList<String> names = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if ((line.length() > 0) && (line.charAt(0) != '#')) {
+                names.add(line);
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    protected static class Page {
+        final int index;
+        final Bitmap bitmap;
+        final Canvas g;
+        final Skyline skyline;
+        int used;
+
+        Page(int index, Bitmap bitmap, Skyline skyline) {
+            this.index = index;
+            this.bitmap = bitmap;
+            this.skyline = skyline;
+            g = new Canvas(bitmap);
+        }
+    }
+
+    /**
+     * A packed image, drawn out of its page.
+     */
+    public static class Region extends PImage {
+
+        /** The page holding the region. */
+        public final int page;
+        /** Position of the region in its page. */
+        public final int x;
+        public final int y;
+
+        protected final Bitmap pageBitmap;
+        protected final Rect src;
+        protected final Rect dst;
+
+        Region(Page page, int x, int y, int width, int height) {
+            super(width, height, false);
+            this.page = page.index;
+            this.x = x;
+            this.y = y;
+            pageBitmap = page.bitmap;
+            src = new Rect(x, y, x + width, y + height);
+            dst = new Rect();
+        }
+
+        protected void draw(Canvas g, int x, int y) {
+            dst.set(x, y, x + width, y + height);
+            g.drawBitmap(pageBitmap, src, dst, null);
+        }
+
+        public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+            pageBitmap.getPixels(pixels, offset, stride, this.x + x, this.y + y, width, height);
+        }
+
+        /**
+         * Returns a bitmap of the region alone, cut from the page the first
+         * time it is needed, for copies out of the region.
+         */
+        protected Bitmap bitmap() {
+            if (image == null) {
+                image = Bitmap.createBitmap(pageBitmap, x, y, width, height);
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Bottom left skyline packing over a page of the given size.
+     */
+    static class Skyline {
+
+        private final int width;
+        private final int height;
+        //// segments of the skyline from left to right, each a start, a top and a width
+        private int[] xs;
+        private int[] ys;
+        private int[] ws;
+        private int count;
+
+        Skyline(int width, int height) {
+            this.width = width;
+            this.height = height;
+            xs = new int[16];
+            ys = new int[16];
+            ws = new int[16];
+            ws[0] = width;
+            count = 1;
+        }
+
+        /**
+         * Reserves a rectangle, returning its position as x << 16 | y, or -1
+         * if it does not fit.
+         */
+        int place(int w, int h) {
+            int best = -1, bestX = 0, bestY = Integer.MAX_VALUE, y, i, j, covered;
+            for (i = 0; i < count; i++) {
+                if (xs[i] + w > width) {
+                    break;
+                }
+                //// the top of the rectangle rests on the highest segment under it
+                y = 0;
+                covered = 0;
+                for (j = i; covered < w; j++) {
+                    y = Math.max(y, ys[j]);
+                    covered += ws[j];
+                }
+                if ((y + h <= height) && (y < bestY)) {
+                    best = i;
+                    bestX = xs[i];
+                    bestY = y;
+                }
+            }
+            if (best < 0) {
+                return -1;
+            }
+            raise(best, bestX, bestY + h, w);
+            return (bestX << 16) | bestY;
+        }
+
+        private void raise(int index, int x, int top, int w) {
+            //// drop or shorten the segments the new one covers
+            int right = x + w;
+            int end = index;
+            while ((end < count) && (xs[end] + ws[end] <= right)) {
+                end++;
+            }
+            if (end < count) {
+                ws[end] -= right - xs[end];
+                xs[end] = right;
+            }
+            int removed = end - index;
+            if (removed == 0) {
+                insert(index);
+            } else if (removed > 1) {
+                System.arraycopy(xs, end, xs, index + 1, count - end);
+                System.arraycopy(ys, end, ys, index + 1, count - end);
+                System.arraycopy(ws, end, ws, index + 1, count - end);
+                count -= removed - 1;
+            }
+            xs[index] = x;
+            ys[index] = top;
+            ws[index] = w;
+            //// merge with neighbors of the same height
+            if ((index + 1 < count) && (ys[index + 1] == top)) {
+                ws[index] += ws[index + 1];
+                remove(index + 1);
+            }
+            if ((index > 0) && (ys[index - 1] == top)) {
+                ws[index - 1] += ws[index];
+                remove(index);
+            }
+        }
+
+        private void insert(int index) {
+            if (count == xs.length) {
+                int[] grown = new int[count << 1];
+                System.arraycopy(xs, 0, grown, 0, count);
+                xs = grown;
+                grown = new int[count << 1];
+                System.arraycopy(ys, 0, grown, 0, count);
+                ys = grown;
+                grown = new int[count << 1];
+                System.arraycopy(ws, 0, grown, 0, count);
+                ws = grown;
+            }
+            System.arraycopy(xs, index, xs, index + 1, count - index);
+            System.arraycopy(ys, index, ys, index + 1, count - index);
+            System.arraycopy(ws, index, ws, index + 1, count - index);
+            count++;
+        }
+
+        private void remove(int index) {
+            System.arraycopy(xs, index + 1, xs, index, count - index - 1);
+            System.arraycopy(ys, index + 1, ys, index, count - index - 1);
+            System.arraycopy(ws, index + 1, ws, index, count - index - 1);
+            count--;
+        }
+    }
+}
@@ -23,26 +23,27 @@
 package processing.core;
 
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.RectF;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.graphics.Bitmap.Config;
-import android.graphics.Paint.Style;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 import android.view.SurfaceHolder;
-import android.view.SurfaceView;
 
 /**
+ * Draws the sketch. On Android frames are shown in a PSurface; a PCanvas
+ * created with a renderer of its own draws into that renderer only and
+ * does not need any Android classes, as long as it does not use system
+ * fonts or images backed by bitmaps.
  * 
  * @author Paul Gregoire (mondain@gmail.com)
  */
-public class PCanvas extends SurfaceView implements
-		SurfaceHolder.Callback {
+public class PCanvas {
 
 	private final static String tag = "PCanvas";
 	
@@ -53,17 +54,40 @@ public class PCanvas extends SurfaceView implements
     protected static final int EDGE_Y1          = 4;
     protected static final int EDGE_X2          = 5;
     protected static final int EDGE_Y2          = 6;
-    protected static final int EDGE_ARRAY_SIZE  = 7;
+    protected static final int EDGE_XSTEP       = 7;
+    protected static final int EDGE_ERROR       = 8;
+    protected static final int EDGE_ERROR_STEP  = 9;
+    protected static final int EDGE_ARRAY_SIZE  = 10;
+    
+    //// one in the 16.16 fixed point of the transform
+    protected static final int MATRIX_ONE       = 1 << 16;
+    //// largest color range converted with lookup tables
+    protected static final int COLOR_TABLE_MAX  = 1023;
+    //// ints saved per pushMatrix(), the transform and the clip
+    protected static final int STACK_FRAME      = 10;
+    
+    protected static final int CURVE_STEPS      = 10;
+    protected static final int CURVE_MAX_STEPS  = 64;
+    //// extra fraction bits of the forward differences, enough for CURVE_MAX_STEPS cubed
+    private static final int   CURVE_SHIFT      = 20;
 	
-    //// the following two fields are public static so that PImage and its subclasses can access them
+    //// the following fields are public static so that PImage and its subclasses can access them
     //// without requiring a reference
     public static Bitmap    buffer;
     public static int       imageMode;
+    //// true if scaled image copies are filtered bilinearly, otherwise they take the nearest pixel
+    public static boolean   imageSmooth;
+    //// renderer drawing into buffer, PImage2 reads the screen through it
+    public static PRenderer renderer;
+    //// pixel format of buffer, PMIDlet.RGB_565 or PMIDlet.ARGB_8888
+    public static int       renderFormat;
     
     protected PMIDlet       midlet;
+    //// view the frames are shown in, null when drawing without one
+    protected PSurface      surface;
     protected boolean       suspended;
     
-    protected Canvas      	bufferg;
+    protected PRenderer     bufferg;
     
     protected int           width;
     protected int           height;
@@ -74,13 +98,34 @@ public class PCanvas extends SurfaceView implements
     protected int           colorMaxY;
     protected int           colorMaxZ;
     protected int           colorMaxA;
+    //// true if the ranges are small enough for the lookup tables, otherwise colors are computed
+    protected boolean       colorTables;
+    //// color values scaled to 0-255
+    protected int[]         colorScaleX;
+    protected int[]         colorScaleY;
+    protected int[]         colorScaleZ;
+    protected int[]         colorScaleA;
+    //// for HSB, hue sector in the high 16 bits and fixed point fraction of the sector in the low 16 bits
+    protected int[]         hueSectors;
+    //// for HSB, saturation and brightness in fixed point
+    protected int[]         saturations;
+    protected int[]         brightnesses;
+    //// mode and ranges the tables were built for
+    private int[] colorTableKey;
     
     protected boolean       stroke;
     protected int           strokeWidth;
-    protected Paint         strokeColor;
+    protected int           strokeColor;
+    protected int           strokeCap;
+    protected int           strokeJoin;
+    protected boolean       nativeStroke;
+    protected int[]         strokeQuad;
+    
+    //// segments handed to the batched renderer calls
+    protected int[]         scratch;
     
     protected boolean       fill;
-    protected Paint         fillColor;
+    protected int           fillColor;
     
     protected int           rectMode;
     protected int           ellipseMode;
@@ -90,64 +135,145 @@ public class PCanvas extends SurfaceView implements
     protected int           vertexIndex;
     protected int[]         curveVertex;
     protected int           curveVertexIndex;
+    //// fixed point distance curves may stray from the lines drawn, 0 for CURVE_STEPS lines per segment
+    protected int           curveTolerance;
+    
+    protected int[]         edges;
+    protected int[]         edgeOrder;
+    protected int[]         activeEdges;
     
     protected int[]         stack;
     protected int           stackIndex;
     
+    //// transform in 16.16 fixed point, x' = m00 * x + m01 * y + m02, y' = m10 * x + m11 * y + m12
+    protected int           m00;
+    protected int           m01;
+    protected int           m02;
+    protected int           m10;
+    protected int           m11;
+    protected int           m12;
+    //// true if the transform is more than a translation by whole pixels
+    protected boolean       transformed;
+    //// true if the renderer applies transforms, otherwise vertices are transformed here
+    protected boolean       nativeTransform;
+    //// vertices transformed into surface coordinates
+    protected int[]         mapped;
+    //// surface bounds computed by mapBounds()
+    protected int[]         bounds;
+    
+    //// translation by whole pixels when not transformed, and clip, in surface coordinates
+    protected int           translateX;
+    protected int           translateY;
+    protected int           clipLeft;
+    protected int           clipTop;
+    protected int           clipRight;
+    protected int           clipBottom;
+    
+    //// primitives rejected because they were entirely outside the clip, and primitives drawn
+    protected int           culledPrimitives;
+    protected int           drawnPrimitives;
+    
+    //// region of the surface changed by the frame being drawn
+    protected int           dirtyLeft;
+    protected int           dirtyTop;
+    protected int           dirtyRight;
+    protected int           dirtyBottom;
+    
     protected PFont         textFont;
     protected int           textAlign;
     protected int           textLeading;
     
     private UpdaterThread thread;
     
+    //// frames handed from the sketch thread to the updater thread, null when drawing without a surface
+    private volatile SwapChain swapChain;
+    //// renderer requested by renderer(), applied by the sketch thread
+    private volatile int requestedRenderer;
+    //// frame pixel format and dithering requested by renderFormat(), applied by the sketch thread
+    private volatile int requestedFormat;
+    private volatile boolean requestedDither;
+    //// surface size requested by surfaceChanged, applied by the sketch thread
+    private volatile int requestedWidth;
+    private volatile int requestedHeight;
+    //// frames handed off by the sketch thread and frames shown by the updater thread
+    private volatile int publishedFrames;
+    private volatile int presentedFrames;
+    
+    //// retained mode, draw() is recorded into one list while the other holds the last frame drawn
+    protected PDisplayList  record;
+    protected PDisplayList  previous;
+    private boolean retained;
+    private boolean retainedThreaded;
+    private RenderThread renderThread;
+    //// frames not drawn because they repeated the previous one
+    private int skippedFrames;
+    
     /** Creates a new instance of PCanvas */
 	public PCanvas(PMIDlet midlet) {
-		super(midlet);
         this.midlet = midlet;
-        
-		setFocusable(true);
+        surface = new PSurface(midlet, this);
 
 		//set wxh
-		this.width = getWidth();
-		this.height = getHeight();
-
-		// register our interest in hearing about changes to our surface
-		SurfaceHolder holder = getHolder();
-		holder.addCallback(this);
+		this.width = surface.getWidth();
+		this.height = surface.getHeight();
 
 		// create thread only; it's started in surfaceCreated()
-		thread = new UpdaterThread(holder, new Handler() {
-			@Override
-			public void handleMessage(Message m) {
-				Log.d(tag, "Message: " + m.getData());
-				//if (textView != null) {
-				//	textView.setVisibility(m.getData().getInt("viz"));
-				//	textView.setText(m.getData().getString("text"));
-				//}
-			}
-		});
+		thread = new UpdaterThread(surface.getHolder());
 
-        buffer = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-        bufferg = new Canvas(buffer);       
+        requestedRenderer = PMIDlet.ANDROID;
+        //// frames default to the format of the display, so presenting them needs no conversion
+        int displayFormat = midlet.getWindowManager().getDefaultDisplay().getPixelFormat();
+        Log.d(tag, "Pixel format: " + displayFormat);
+        requestedFormat = (displayFormat == PixelFormat.RGB_565) ? PMIDlet.RGB_565 : PMIDlet.ARGB_8888;
+        surface.getHolder().setFormat(pixelFormat(requestedFormat));
+        swapChain = new SwapChain(Math.max(1, width), Math.max(1, height), requestedRenderer, requestedFormat, requestedDither);
+        buffer = swapChain.frames[swapChain.back];
+        bufferg = swapChain.framesg[swapChain.back];
+        renderer = bufferg;
+        renderFormat = requestedFormat;
         
+        init();
+	}
+    
+    /**
+     * Creates a canvas that draws into the given renderer and presents
+     * nothing, for running sketches without a display. Every frame is drawn
+     * over the previous one in the same renderer.
+     */
+    public PCanvas(PRenderer renderer) {
+        width = renderer.getWidth();
+        height = renderer.getHeight();
+        bufferg = renderer;
+        PCanvas.renderer = renderer;
+        requestedFormat = renderFormat = PMIDlet.ARGB_8888;
+        
+        init();
+    }
+    
+    private void init() {
         colorMode = PMIDlet.RGB;
         colorModeRGB255 = true;
         colorMaxX = colorMaxY = colorMaxZ = colorMaxA = 255;
+        colorTableKey = new int[5];
+        updateColorTables();
         
         stroke = true;
-        strokeColor = new Paint();
-        strokeColor.setColor(Color.BLACK);
-        strokeColor.setStrokeWidth(1f);
+        strokeColor = 0xff000000;
         strokeWidth = 1;
+        strokeCap = PMIDlet.ROUND;
+        strokeJoin = PMIDlet.MITER;
+        updateStrokeStyle();
+        nativeTransform = bufferg.transforms();
+        strokeQuad = new int[8];
+        scratch = new int[64];
         
         fill = true;
-        fillColor = new Paint();
-        fillColor.setColor(Color.WHITE);
-        fillColor.setStyle(Style.FILL);
+        fillColor = 0xffffffff;
         
         rectMode = PMIDlet.CORNER;
         ellipseMode = PMIDlet.CENTER;
         imageMode = PMIDlet.CORNER;
+        imageSmooth = false;
         
         shapeMode = -1;
         vertex = new int[16];
@@ -156,16 +282,269 @@ public class PCanvas extends SurfaceView implements
         curveVertex = new int[8];
         curveVertexIndex = 0;
         
-        stack = new int[6];
+        edges = new int[8 * EDGE_ARRAY_SIZE];
+        edgeOrder = new int[8];
+        activeEdges = new int[8];
+        
+        stack = new int[STACK_FRAME];
+        m00 = m11 = MATRIX_ONE;
+        mapped = new int[16];
+        bounds = new int[4];
+        
+        clipRight = this.width;
+        clipBottom = this.height;
         
         textAlign = PMIDlet.LEFT;
         
         background(200);
-	
-	}    
+    }
     
     protected void reset() {
-        resetMatrix();
+        if ((retained != (record != null)) || (retainedThreaded != (renderThread != null))) {
+            applyRetainedMode();
+        }
+        if (record != null) {
+            record.clear(previous);
+        } else {
+            prepareFrame();
+        }
+    }
+    
+    /**
+     * Hands the frame just drawn to the updater thread. In retained mode the
+     * recorded frame is drawn first, unless it repeats the previous frame.
+     */
+    protected void publish() {
+        if (record == null) {
+            publishFrame();
+            return;
+        }
+        if (record.repeatable() && record.matches(previous) && !resizePending()) {
+            //// the frame on screen is already this frame
+            skippedFrames++;
+            return;
+        }
+        PDisplayList list = record;
+        if (renderThread != null) {
+            renderThread.submit(list);
+        } else {
+            render(list);
+        }
+        //// the submitted list is kept to compare the next frame against
+        record = previous;
+        previous = list;
+    }
+    
+    protected void render(PDisplayList list) {
+        prepareFrame();
+        list.replay(this);
+        publishFrame();
+    }
+    
+    private boolean resizePending() {
+        int requestedWidth = this.requestedWidth;
+        int requestedHeight = this.requestedHeight;
+        return ((requestedWidth > 0) && (requestedHeight > 0) &&
+                ((requestedWidth != width) || (requestedHeight != height))) ||
+               ((swapChain != null) &&
+                ((requestedRenderer != swapChain.renderer) || (requestedFormat != swapChain.format) ||
+                 (requestedDither != swapChain.dither)));
+    }
+    
+    protected void prepareFrame() {
+        //// apply surface size and renderer changes between frames, never while the sketch is drawing
+        if (resizePending()) {
+            if ((requestedWidth > 0) && (requestedHeight > 0)) {
+                width = requestedWidth;
+                height = requestedHeight;
+            }
+            SwapChain chain = new SwapChain(width, height, requestedRenderer, requestedFormat, requestedDither);
+            buffer = chain.frames[chain.back];
+            bufferg = chain.framesg[chain.back];
+            renderer = bufferg;
+            renderFormat = chain.format;
+            swapChain = chain;
+            updateStrokeStyle();
+            nativeTransform = bufferg.transforms();
+            resetMatrixImpl();
+            backgroundImpl(0xffc8c8c8);
+        }
+        resetMatrixImpl();
+    }
+    
+    /**
+     * Hands the frame just drawn to the updater thread and continues drawing
+     * on the next back buffer, which is brought up to date with a copy of the
+     * published frame so that drawing accumulates across frames as before.
+     */
+    protected void publishFrame() {
+        bufferg.flush();
+        SwapChain chain = swapChain;
+        if (chain == null) {
+            //// without a surface the frame is finished once it is flushed
+            dirtyLeft = dirtyTop = dirtyRight = dirtyBottom = 0;
+            resetMatrixImpl();
+            publishedFrames++;
+            presentedFrames++;
+            return;
+        }
+        int published = chain.back;
+        chain.back = chain.swapBack(published, dirtyLeft, dirtyTop, dirtyRight, dirtyBottom);
+        dirtyLeft = dirtyTop = dirtyRight = dirtyBottom = 0;
+        buffer = chain.frames[chain.back];
+        bufferg = chain.framesg[chain.back];
+        renderer = bufferg;
+        //// only the parts changed since this buffer last held the current frame need copying
+        Rect stale = chain.stale[chain.back];
+        if (!stale.isEmpty()) {
+            bufferg.copy(chain.framesg[published], stale.left, stale.top, stale.right, stale.bottom);
+            stale.setEmpty();
+        }
+        //// each frame has its own renderer, bring its stroke style and transform up to date
+        updateStrokeStyle();
+        nativeTransform = bufferg.transforms();
+        resetMatrixImpl();
+        publishedFrames++;
+        thread.frameReady();
+    }
+    
+    /**
+     * Records the drawing done in draw() and draws it in one pass when the
+     * frame is complete. A frame that records exactly the same commands as
+     * the previous one, and starts by painting an opaque background over
+     * the whole surface, is not drawn or presented again. If threaded, the
+     * recorded frame is drawn on a separate thread while the sketch goes on
+     * to record the next one; pixels read back from the canvas are then
+     * those of the last frame drawn. Takes effect with the next frame.
+     */
+    public void retainedMode(boolean threaded) {
+        retained = true;
+        retainedThreaded = threaded;
+    }
+    
+    public void noRetainedMode() {
+        retained = false;
+        retainedThreaded = false;
+    }
+    
+    /**
+     * Selects how frames are drawn, PMIDlet.ANDROID for android.graphics.Canvas
+     * or PMIDlet.P2D for the pure Java renderer. Takes effect with the next
+     * frame, which starts out blank.
+     */
+    public void renderer(int type) {
+        if ((type != PMIDlet.ANDROID) && (type != PMIDlet.P2D)) {
+            throw new IllegalArgumentException("Invalid renderer");
+        }
+        requestedRenderer = type;
+    }
+    
+    public void renderFormat(int format) {
+        renderFormat(format, false);
+    }
+    
+    /**
+     * Selects the pixel format of the frames, PMIDlet.RGB_565 or
+     * PMIDlet.ARGB_8888, and whether colors that RGB_565 can not hold are
+     * dithered. RGB_565 frames take half the memory and half the bandwidth
+     * to present. Takes effect with the next frame, which starts out blank.
+     */
+    public void renderFormat(int format, boolean dither) {
+        if ((format != PMIDlet.RGB_565) && (format != PMIDlet.ARGB_8888)) {
+            throw new IllegalArgumentException("Invalid render format");
+        }
+        if (swapChain == null) {
+            return;
+        }
+        requestedFormat = format;
+        requestedDither = dither;
+        surface.setPixelFormat(pixelFormat(format));
+    }
+    
+    /**
+     * Returns the number of colors the frames can hold.
+     */
+    public int numColors() {
+        return (renderFormat == PMIDlet.RGB_565) ? 65536 : 16777216;
+    }
+    
+    private static int pixelFormat(int format) {
+        return (format == PMIDlet.RGB_565) ? PixelFormat.RGB_565 : PixelFormat.RGBA_8888;
+    }
+    
+    /**
+     * Waits until every frame handed off for drawing has been drawn.
+     */
+    protected void finish() {
+        if (renderThread != null) {
+            renderThread.finish();
+            renderThread = null;
+        }
+    }
+    
+    private void applyRetainedMode() {
+        if (renderThread != null) {
+            //// everything submitted is drawn before the sketch draws again
+            renderThread.finish();
+            renderThread = null;
+        }
+        if (retained) {
+            if (record == null) {
+                record = new PDisplayList();
+                previous = new PDisplayList();
+                previous.state(fill, fillColor, stroke, strokeColor, strokeWidth, strokeCap, strokeJoin);
+            }
+            if (retainedThreaded) {
+                renderThread = new RenderThread();
+                renderThread.start();
+            }
+        } else {
+            record = null;
+            previous = null;
+        }
+    }
+    
+    /**
+     * Returns the number of frames the sketch has completed.
+     */
+    public int framesPublished() {
+        return publishedFrames;
+    }
+    
+    /**
+     * Returns the number of completed frames that reached the screen. This
+     * trails framesPublished() by the frames that were replaced by a newer
+     * one before the updater thread could show them.
+     */
+    public int framesPresented() {
+        return presentedFrames;
+    }
+    
+    /**
+     * Returns the number of frames recorded in retained mode that were not
+     * drawn because they repeated the previous frame.
+     */
+    public int framesSkipped() {
+        return skippedFrames;
+    }
+    
+    /**
+     * Returns the number of primitives that were not drawn because they lay
+     * entirely outside the clip.
+     */
+    public int primitivesCulled() {
+        return culledPrimitives;
+    }
+    
+    /**
+     * Returns the number of primitives handed to the renderer.
+     */
+    public int primitivesDrawn() {
+        return drawnPrimitives;
+    }
+    
+    public void resetPrimitiveCounts() {
+        culledPrimitives = drawnPrimitives = 0;
     }
     
     protected void keyPressed(int keyCode) {
@@ -195,61 +574,324 @@ public class PCanvas extends SurfaceView implements
     }
     
     public void point(int x1, int y1) {
-        if (stroke) {
-        	bufferg.drawPoint(x1, y1, strokeColor);
+        if (record != null) {
+            record.point(x1, y1);
+        } else {
+            pointImpl(x1, y1);
+        }
+    }
+    
+    protected void pointImpl(int x1, int y1) {
+        if (transformed && !nativeTransform) {
+            transformed = false;
+            pointImpl(mapX(x1, y1), mapY(x1, y1));
+            transformed = true;
+            return;
+        }
+        if (stroke && dirtyShape(x1, y1, x1, y1)) {
+        	bufferg.point(x1, y1, strokeColor);
         }
     }
     
     public void line(int x1, int y1, int x2, int y2) {
-        if (stroke) {
-            bufferg.drawLine(x1, y1, x2, y2, strokeColor);
-            if (strokeWidth > 1) {
-                boolean steep = Math.abs(y2 - y1) > Math.abs(x2 - x1);
-                if (steep) {
-                    int swap = x1;
-                    x1 = y1;
-                    y1 = swap;
-                    swap = x2;
-                    x2 = y2;
-                    y2 = swap;
-                }
-                if (x1 > x2) {
-                    int swap = x1;
-                    x1 = x2;
-                    x2 = swap;
-                    swap = y1;
-                    y1 = y2;
-                    y2 = swap;
-                }
-                int dx = x2 - x1;
-                int dy = (y2 > y1) ? y2 - y1 : y1 - y2;
-                int error = 0;
-                int halfWidth = strokeWidth >> 1;
-                int y = y1 - halfWidth;
-                int ystep;
-                if (y1 < y2) {
-                    ystep = 1;
-                } else {
-                    ystep = -1;
-                }
-                for (int x = x1 - halfWidth, endx = x2 - halfWidth; x <= endx; x++) {
-                	if (steep) {
-                    	RectF oval = new RectF();
-                    	oval.set(y, x, y + strokeWidth, x + strokeWidth);
-                    	bufferg.drawArc(oval, 0, 360, false, fillColor);                     	
-                    } else {
-                    	RectF oval = new RectF();
-                    	oval.set(x, y, x + strokeWidth, y + strokeWidth);
-                    	bufferg.drawArc(oval, 0, 360, false, fillColor);                     	
-                    }
-                    error += dy;
-                    if ((2 * error) >= dx) {
-                        y += ystep;
-                        error -= dx;
-                    }
+        if (record != null) {
+            record.line(x1, y1, x2, y2);
+        } else {
+            lineImpl(x1, y1, x2, y2);
+        }
+    }
+    
+    protected void lineImpl(int x1, int y1, int x2, int y2) {
+        if (transformed && !nativeTransform) {
+            transformed = false;
+            lineImpl(mapX(x1, y1), mapY(x1, y1), mapX(x2, y2), mapY(x2, y2));
+            transformed = true;
+            return;
+        }
+        if (stroke && dirtyShape(x1, y1, x2, y2)) {
+            if ((strokeWidth > 1) && !nativeStroke) {
+                thickSegment(x1, y1, x2, y2, true, true);
+            } else {
+                //// the renderer carries the width and cap, so thick lines are a single call
+                bufferg.line(x1, y1, x2, y2, strokeColor);
+            }
+        }
+    }
+    
+    public void points(int[] xy) {
+        points(xy, 0, xy.length >> 1);
+    }
+    
+    /**
+     * Draws count points whose x and y coordinates follow each other in the
+     * array starting at offset, with a single renderer call.
+     */
+    public void points(int[] xy, int offset, int count) {
+        if (record != null) {
+            record.shape(PMIDlet.POINTS, xy, offset, count << 1);
+        } else {
+            pointsImpl(xy, offset, count);
+        }
+    }
+    
+    protected void pointsImpl(int[] xy, int offset, int count) {
+        if (transformed && !nativeTransform) {
+            transformed = false;
+            pointsImpl(mapPoints(xy, offset, count << 1), 0, count);
+            transformed = true;
+            return;
+        }
+        if (stroke && (count > 0) && dirtyPoints(xy, offset, count << 1)) {
+            bufferg.points(xy, offset, count, strokeColor);
+        }
+    }
+    
+    public void lines(int[] xy) {
+        lines(xy, 0, xy.length >> 2);
+    }
+    
+    /**
+     * Draws count separate lines, each given by x1, y1, x2, y2 in the array
+     * starting at offset, with a single renderer call.
+     */
+    public void lines(int[] xy, int offset, int count) {
+        if (record != null) {
+            record.shape(PMIDlet.LINES, xy, offset, count << 2);
+        } else {
+            linesImpl(xy, offset, count);
+        }
+    }
+    
+    protected void linesImpl(int[] xy, int offset, int count) {
+        if (!stroke || (count <= 0)) {
+            return;
+        }
+        if (transformed && !nativeTransform) {
+            transformed = false;
+            linesImpl(mapPoints(xy, offset, count << 2), 0, count);
+            transformed = true;
+            return;
+        }
+        int length = count << 2;
+        if ((strokeWidth > 1) && !nativeStroke) {
+            for (int i = offset, end = offset + length; i < end; i += 4) {
+                lineImpl(xy[i], xy[i + 1], xy[i + 2], xy[i + 3]);
+            }
+            return;
+        }
+        if (dirtyPoints(xy, offset, length)) {
+            bufferg.lines(xy, offset, count, strokeColor);
+        }
+    }
+    
+    /**
+     * Draws count vertices starting at offset as connected lines, closing
+     * the strip back to the first vertex if closed, with a single renderer
+     * call.
+     */
+    protected void lineStripImpl(int[] xy, int offset, int count, boolean closed) {
+        if (!stroke || (count <= 0)) {
+            return;
+        }
+        int segments = closed ? count : count - 1;
+        int end = offset + (count << 1);
+        if ((strokeWidth > 1) && !nativeStroke) {
+            for (int i = offset + 2; i < end; i += 2) {
+                lineImpl(xy[i - 2], xy[i - 1], xy[i], xy[i + 1]);
+            }
+            if (closed) {
+                lineImpl(xy[end - 2], xy[end - 1], xy[offset], xy[offset + 1]);
+            }
+            return;
+        }
+        if ((segments <= 0) || !dirtyPoints(xy, offset, count << 1)) {
+            return;
+        }
+        if (scratch.length < (segments << 2)) {
+            scratch = new int[Math.max(segments << 2, scratch.length * 2)];
+        }
+        int[] scratch = this.scratch;
+        int j = 0;
+        for (int i = offset + 2; i < end; i += 2) {
+            scratch[j] = xy[i - 2];
+            scratch[j + 1] = xy[i - 1];
+            scratch[j + 2] = xy[i];
+            scratch[j + 3] = xy[i + 1];
+            j += 4;
+        }
+        if (closed) {
+            scratch[j] = xy[end - 2];
+            scratch[j + 1] = xy[end - 1];
+            scratch[j + 2] = xy[offset];
+            scratch[j + 3] = xy[offset + 1];
+        }
+        bufferg.lines(scratch, 0, segments, strokeColor);
+    }
+    
+    /**
+     * Adds the bounds of length / 2 vertices starting at offset to the
+     * dirty region. Returns false if they are all outside the clip.
+     */
+    protected boolean dirtyPoints(int[] xy, int offset, int length) {
+        int xMin = Integer.MAX_VALUE, yMin = Integer.MAX_VALUE;
+        int xMax = Integer.MIN_VALUE, yMax = Integer.MIN_VALUE;
+        int x, y;
+        for (int i = offset, end = offset + length; i < end; i += 2) {
+            x = xy[i];
+            y = xy[i + 1];
+            if (x < xMin) xMin = x;
+            if (x > xMax) xMax = x;
+            if (y < yMin) yMin = y;
+            if (y > yMax) yMax = y;
+        }
+        return (xMin <= xMax) && dirtyShape(xMin, yMin, xMax, yMax);
+    }
+    
+    /**
+     * Adds the bounds of the vertices between the given indices to the dirty
+     * region, with room for the joins of a thick stroke through them.
+     * Returns false if the shape is outside the clip.
+     */
+    protected boolean dirtyPolyline(int[] points, int startIndex, int endIndex) {
+        int xMin = points[startIndex], xMax = xMin;
+        int yMin = points[startIndex + 1], yMax = yMin;
+        for (int i = startIndex + 2; i <= endIndex; i += 2) {
+            xMin = Math.min(xMin, points[i]);
+            xMax = Math.max(xMax, points[i]);
+            yMin = Math.min(yMin, points[i + 1]);
+            yMax = Math.max(yMax, points[i + 1]);
+        }
+        //// miter joins can reach well past the stroke weight at sharp angles
+        int pad = (stroke && (strokeWidth > 1) && (strokeJoin == PMIDlet.MITER)) ? 3 * strokeWidth : 0;
+        return dirtyShape(xMin - pad, yMin - pad, xMax + pad, yMax + pad);
+    }
+    
+    /**
+     * Strokes connected segments through the given indices of the points
+     * array as one shape, so that the current strokeJoin() applies between
+     * segments. The caller adds the shape to the dirty region with
+     * dirtyPolyline().
+     */
+    protected void strokePolyline(int[] points, int startIndex, int endIndex, boolean closed) {
+        if (nativeStroke) {
+            bufferg.polyline(points, startIndex, endIndex, closed, strokeColor);
+        } else {
+            int i;
+            for (i = startIndex + 2; i <= endIndex; i += 2) {
+                thickSegment(points[i - 2], points[i - 1], points[i], points[i + 1],
+                             !closed && (i == startIndex + 2), !closed && (i == endIndex));
+                if (i < endIndex) {
+                    thickJoin(points[i - 2], points[i - 1], points[i], points[i + 1], points[i + 2], points[i + 3]);
                 }
             }
+            if (closed) {
+                thickSegment(points[endIndex], points[endIndex + 1], points[startIndex], points[startIndex + 1], false, false);
+                thickJoin(points[endIndex - 2], points[endIndex - 1], points[endIndex], points[endIndex + 1],
+                          points[startIndex], points[startIndex + 1]);
+                thickJoin(points[endIndex], points[endIndex + 1], points[startIndex], points[startIndex + 1],
+                          points[startIndex + 2], points[startIndex + 3]);
+            }
+        }
+    }
+    
+    /**
+     * Software thick line, filled as one quad with the polygon filler plus
+     * the requested end caps.
+     */
+    protected void thickSegment(int x1, int y1, int x2, int y2, boolean startCap, boolean endCap) {
+        int dx = x2 - x1;
+        int dy = y2 - y1;
+        if ((dx == 0) && (dy == 0)) {
+            if (startCap || endCap) {
+                thickCap(x1, y1);
+            }
+            return;
+        }
+        //// half-width normal, and half-width extension along the line for projecting caps
+        float scale = strokeWidth / (2 * (float) Math.sqrt(dx * dx + dy * dy));
+        int nx = Math.round(-dy * scale);
+        int ny = Math.round(dx * scale);
+        int sx = 0, sy = 0, ex = 0, ey = 0;
+        if (strokeCap == PMIDlet.PROJECT) {
+            if (startCap) {
+                sx = Math.round(dx * scale);
+                sy = Math.round(dy * scale);
+            }
+            if (endCap) {
+                ex = Math.round(dx * scale);
+                ey = Math.round(dy * scale);
+            }
+        }
+        int[] quad = strokeQuad;
+        quad[0] = x1 - sx + nx;
+        quad[1] = y1 - sy + ny;
+        quad[2] = x2 + ex + nx;
+        quad[3] = y2 + ey + ny;
+        quad[4] = x2 + ex - nx;
+        quad[5] = y2 + ey - ny;
+        quad[6] = x1 - sx - nx;
+        quad[7] = y1 - sy - ny;
+        fillPolygon(quad, 0, 6, strokeColor);
+        if (strokeCap == PMIDlet.ROUND) {
+            if (startCap) {
+                thickDisc(x1, y1);
+            }
+            if (endCap) {
+                thickDisc(x2, y2);
+            }
+        }
+    }
+    
+    /**
+     * Software join at (x2, y2) between the segments from (x1, y1) and to
+     * (x3, y3). Miter joins are approximated by bevels.
+     */
+    protected void thickJoin(int x1, int y1, int x2, int y2, int x3, int y3) {
+        if (strokeJoin == PMIDlet.ROUND) {
+            thickDisc(x2, y2);
+            return;
         }
+        int dx1 = x2 - x1;
+        int dy1 = y2 - y1;
+        int dx2 = x3 - x2;
+        int dy2 = y3 - y2;
+        if (((dx1 == 0) && (dy1 == 0)) || ((dx2 == 0) && (dy2 == 0))) {
+            return;
+        }
+        float scale1 = strokeWidth / (2 * (float) Math.sqrt(dx1 * dx1 + dy1 * dy1));
+        float scale2 = strokeWidth / (2 * (float) Math.sqrt(dx2 * dx2 + dy2 * dy2));
+        int nx1 = Math.round(-dy1 * scale1);
+        int ny1 = Math.round(dx1 * scale1);
+        int nx2 = Math.round(-dy2 * scale2);
+        int ny2 = Math.round(dx2 * scale2);
+        //// fill the wedge on both sides, the inner one is already covered by the segments
+        int[] quad = strokeQuad;
+        quad[0] = x2;
+        quad[1] = y2;
+        quad[2] = x2 + nx1;
+        quad[3] = y2 + ny1;
+        quad[4] = x2 + nx2;
+        quad[5] = y2 + ny2;
+        fillPolygon(quad, 0, 4, strokeColor);
+        quad[2] = x2 - nx1;
+        quad[3] = y2 - ny1;
+        quad[4] = x2 - nx2;
+        quad[5] = y2 - ny2;
+        fillPolygon(quad, 0, 4, strokeColor);
+    }
+    
+    protected void thickCap(int x, int y) {
+        if (strokeCap == PMIDlet.ROUND) {
+            thickDisc(x, y);
+        } else if (strokeCap == PMIDlet.PROJECT) {
+            int half = strokeWidth >> 1;
+            bufferg.fillRect(x - half, y - half, strokeWidth, strokeWidth, strokeColor);
+        }
+    }
+    
+    protected void thickDisc(int x, int y) {
+        int half = strokeWidth >> 1;
+        bufferg.fillEllipse(x - half, y - half, strokeWidth, strokeWidth, strokeColor);
     }
     
     public void triangle(int x1, int y1, int x2, int y2, int x3, int y3) {
@@ -294,12 +936,127 @@ public class PCanvas extends SurfaceView implements
                 y -= height / 2;
                 break;
         }
+        if (record != null) {
+            record.rect(x, y, width, height);
+        } else {
+            rectImpl(x, y, width, height);
+        }
+    }
+    
+    protected void rectImpl(int x, int y, int width, int height) {
+        if (transformed && !nativeTransform) {
+            //// the software renderer only draws upright rectangles, draw the transformed corners as a polygon
+            int[] quad = strokeQuad;
+            quad[0] = x;
+            quad[1] = y;
+            quad[2] = x + width;
+            quad[3] = y;
+            quad[4] = x + width;
+            quad[5] = y + height;
+            quad[6] = x;
+            quad[7] = y + height;
+            shapeImpl(PMIDlet.POLYGON, quad, 0, 8);
+            return;
+        }
+        if (!dirtyShape(x, y, x + width, y + height)) {
+            return;
+        }
         if (fill) {
-        	//draw and fill
-        	bufferg.drawRect(x, y, x + width, y + height, fillColor);
+        	bufferg.fillRect(x, y, width, height, fillColor);
         }
         if (stroke) {
-        	bufferg.drawRect(x, y, x + width, y + height, strokeColor);
+        	bufferg.strokeRect(x, y, width, height, strokeColor);
+        }
+    }
+    
+    public void rects(int[] xywh) {
+        rects(xywh, 0, xywh.length >> 2);
+    }
+    
+    /**
+     * Draws count rectangles, each given by four values in the array
+     * starting at offset and interpreted according to rectMode. In retained
+     * mode they are recorded as a single command.
+     */
+    public void rects(int[] xywh, int offset, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int[] corners = xywh;
+        if (rectMode != PMIDlet.CORNER) {
+            //// converted once to the x, y, width, height the commands take
+            int length = count << 2, x, y, width, height, temp;
+            corners = PPool.ints(length);
+            for (int i = 0, j = offset; i < length; i += 4, j += 4) {
+                x = xywh[j];
+                y = xywh[j + 1];
+                width = xywh[j + 2];
+                height = xywh[j + 3];
+                switch (rectMode) {
+                    case PMIDlet.CORNERS:
+                        temp = x;
+                        x = Math.min(x, width);
+                        width = Math.abs(x - temp);
+                        temp = y;
+                        y = Math.min(y, height);
+                        height = Math.abs(y - temp);
+                        break;
+                    case PMIDlet.CENTER:
+                        x -= width / 2;
+                        y -= height / 2;
+                        break;
+                }
+                corners[i] = x;
+                corners[i + 1] = y;
+                corners[i + 2] = width;
+                corners[i + 3] = height;
+            }
+            offset = 0;
+        }
+        try {
+            if (record != null) {
+                record.rects(corners, offset, count);
+            } else {
+                rectsImpl(corners, offset, count);
+            }
+        } finally {
+            if (corners != xywh) {
+                PPool.recycle(corners);
+            }
+        }
+    }
+    
+    protected void rectsImpl(int[] xywh, int offset, int count) {
+        int x, y, width, height;
+        int pad = stroke ? strokeWidth + 1 : 1;
+        int xMin = Integer.MAX_VALUE, yMin = Integer.MAX_VALUE;
+        int xMax = Integer.MIN_VALUE, yMax = Integer.MIN_VALUE;
+        for (int i = offset, end = offset + (count << 2); i < end; i += 4) {
+            x = xywh[i];
+            y = xywh[i + 1];
+            width = xywh[i + 2];
+            height = xywh[i + 3];
+            if (transformed && !nativeTransform) {
+                rectImpl(x, y, width, height);
+                continue;
+            }
+            //// renderers have no batched rectangle call, but the dirty region is only updated once
+            if (!visible(x - pad, y - pad, x + width + pad, y + height + pad, false)) {
+                continue;
+            }
+            if (fill) {
+                bufferg.fillRect(x, y, width, height, fillColor);
+            }
+            if (stroke) {
+                bufferg.strokeRect(x, y, width, height, strokeColor);
+            }
+            xMin = Math.min(xMin, x);
+            yMin = Math.min(yMin, y);
+            xMax = Math.max(xMax, x + width);
+            yMax = Math.max(yMax, y + height);
+        }
+        if (xMin <= xMax) {
+            dirty(xMin - pad, yMin - pad, xMax + pad, yMax + pad);
         }
     }
     
@@ -331,18 +1088,58 @@ public class PCanvas extends SurfaceView implements
                 height *= 2;
                 break;
         }
+        if (record != null) {
+            record.ellipse(x, y, width, height);
+        } else {
+            ellipseImpl(x, y, width, height);
+        }
+    }
+    
+    protected void ellipseImpl(int x, int y, int width, int height) {
+        if (transformed && !nativeTransform) {
+            transformedEllipse(x, y, width, height);
+            return;
+        }
+        if (!dirtyShape(x, y, x + width, y + height)) {
+            return;
+        }
         if (fill) {
-        	RectF oval = new RectF();
-        	oval.set(x, y, x + width, y + height);
-        	bufferg.drawArc(oval, 0, 360, false, fillColor);        	
+        	bufferg.fillEllipse(x, y, width, height, fillColor);
         }
         if (stroke) {
-        	RectF oval = new RectF();
-        	oval.set(x, y, x + width, y + height);
-        	bufferg.drawArc(oval, 0, 360, false, strokeColor);        	
+        	bufferg.strokeEllipse(x, y, width, height, strokeColor);
         }
     }
     
+    /**
+     * Draws the outline of a transformed ellipse as a polygon, with enough
+     * sides to look round at its size on the surface.
+     */
+    protected void transformedEllipse(int x, int y, int width, int height) {
+        double a = m00 / (double) MATRIX_ONE, b = m01 / (double) MATRIX_ONE;
+        double d = m10 / (double) MATRIX_ONE, e = m11 / (double) MATRIX_ONE;
+        double rx = width / 2.0, ry = height / 2.0;
+        double cx = x + rx, cy = y + ry;
+        //// a side of about 4 pixels on the largest radius
+        double radius = Math.max(rx, ry) * Math.max(Math.abs(a) + Math.abs(b), Math.abs(d) + Math.abs(e));
+        int sides = Math.min(64, Math.max(8, ((int) (radius * 2 * Math.PI / 4) + 3) & ~3));
+        if (mapped.length < (sides << 1)) {
+            mapped = new int[sides << 1];
+        }
+        int[] mapped = this.mapped;
+        double tx = m02 / (double) MATRIX_ONE, ty = m12 / (double) MATRIX_ONE;
+        for (int i = 0; i < sides; i++) {
+            double angle = i * 2 * Math.PI / sides;
+            double px = cx + rx * Math.cos(angle);
+            double py = cy + ry * Math.sin(angle);
+            mapped[i << 1] = (int) Math.floor(a * px + b * py + tx + 0.5);
+            mapped[(i << 1) + 1] = (int) Math.floor(d * px + e * py + ty + 0.5);
+        }
+        transformed = false;
+        shapeImpl(PMIDlet.POLYGON, mapped, 0, sides << 1);
+        transformed = true;
+    }
+    
     public void ellipseMode(int MODE) {
         if ((MODE >= PMIDlet.CENTER) && (MODE <= PMIDlet.CORNERS)) {
             ellipseMode = MODE;
@@ -368,8 +1165,63 @@ public class PCanvas extends SurfaceView implements
     }
     
     public void strokeWeight(int width) {
+        if (record != null) {
+            record.strokeWeight(width);
+        } else {
+            strokeWeightImpl(width);
+        }
+    }
+    
+    protected void strokeWeightImpl(int width) {
+        if (width == strokeWidth) {
+            return;
+        }
         strokeWidth = width;
-        strokeColor.setStrokeWidth(width * 1.0f);
+        updateStrokeStyle();
+    }
+    
+    public void strokeCap(int cap) {
+        if ((cap != PMIDlet.SQUARE) && (cap != PMIDlet.ROUND) && (cap != PMIDlet.PROJECT)) {
+            throw new IllegalArgumentException("Invalid strokeCap value");
+        }
+        if (record != null) {
+            record.strokeCap(cap);
+        } else {
+            strokeCapImpl(cap);
+        }
+    }
+    
+    protected void strokeCapImpl(int cap) {
+        if (cap == strokeCap) {
+            return;
+        }
+        strokeCap = cap;
+        updateStrokeStyle();
+    }
+    
+    public void strokeJoin(int join) {
+        if ((join != PMIDlet.MITER) && (join != PMIDlet.ROUND) && (join != PMIDlet.BEVEL)) {
+            throw new IllegalArgumentException("Invalid strokeJoin value");
+        }
+        if (record != null) {
+            record.strokeJoin(join);
+        } else {
+            strokeJoinImpl(join);
+        }
+    }
+    
+    protected void strokeJoinImpl(int join) {
+        if (join == strokeJoin) {
+            return;
+        }
+        strokeJoin = join;
+        updateStrokeStyle();
+    }
+    
+    protected void updateStrokeStyle() {
+        bufferg.setStrokeStyle(strokeWidth, strokeCap, strokeJoin);
+        //// wide strokes are built from spans when the renderer only draws thin ones
+        nativeStroke = bufferg.wideStrokes();
     }
     
     public void beginShape(int MODE) {
@@ -383,218 +1235,245 @@ public class PCanvas extends SurfaceView implements
     }
     
     public void endShape() {
+        if (record != null) {
+            record.shape(shapeMode, vertex, 0, vertexIndex);
+        } else {
+            shapeImpl(shapeMode, vertex, 0, vertexIndex);
+        }
+        vertexIndex = 0;
+    }
+    
+    /**
+     * Draws length / 2 vertices starting at offset in the points array as
+     * the given shape mode.
+     */
+    protected void shapeImpl(int mode, int[] points, int offset, int length) {
+        if (transformed && !nativeTransform) {
+            //// transform all vertices at once, the shape is then drawn in surface coordinates
+            transformed = false;
+            shapeImpl(mode, mapPoints(points, offset, length), 0, length);
+            transformed = true;
+            return;
+        }
         int i;
         int step;
-        switch (shapeMode) {
+        int end = offset + length;
+        switch (mode) {
             case PMIDlet.POINTS:
-                i = 0;
-                step = 2;
-                break;
+                pointsImpl(points, offset, length >> 1);
+                return;
             case PMIDlet.LINES:
-                i = 2;
-                step = 4;
-                break;
+                linesImpl(points, offset, length >> 2);
+                return;
             case PMIDlet.LINE_STRIP:
             case PMIDlet.LINE_LOOP:
-                i = 2;
-                step = 2;
-                break;
+                //// thick strips are stroked as a single shape so they get joins
+                if (stroke && (strokeWidth > 1) && (length >= 4)) {
+                    if (dirtyPolyline(points, offset, end - 2)) {
+                        strokePolyline(points, offset, end - 2, mode == PMIDlet.LINE_LOOP);
+                    }
+                } else {
+                    lineStripImpl(points, offset, length >> 1, mode == PMIDlet.LINE_LOOP);
+                }
+                return;
             case PMIDlet.TRIANGLES:
-                i = 4;
+                i = offset + 4;
                 step = 6;
                 break;
             case PMIDlet.TRIANGLE_STRIP:
-                i = 4;
+                i = offset + 4;
                 step = 2;
                 break;
             case PMIDlet.QUADS:
-                i = 6;
+                i = offset + 6;
                 step = 8;
                 break;
             case PMIDlet.QUAD_STRIP:
-                i = 6;
+                i = offset + 6;
                 step = 4;
                 break;
             case PMIDlet.POLYGON:
-                polygon(0, vertexIndex - 2);
+                polygon(points, offset, end - 2);
                 return;
             default:
                 return;
         }
         
-        for (; i < vertexIndex; i += step) {
-            switch (shapeMode) {
-                case PMIDlet.POINTS:
-                    point(vertex[i], vertex[i + 1]);
-                    break;
-                case PMIDlet.LINES:
-                case PMIDlet.LINE_STRIP:
-                case PMIDlet.LINE_LOOP:
-                    line(vertex[i - 2], vertex[i - 1], vertex[i], vertex[i + 1]);
-                    break;
+        for (; i < end; i += step) {
+            switch (mode) {
                 case PMIDlet.TRIANGLES:
                 case PMIDlet.TRIANGLE_STRIP:
-                    polygon(i - 4, i);
+                    polygon(points, i - 4, i);
                     break;
                 case PMIDlet.QUADS:
                 case PMIDlet.QUAD_STRIP:
-                    polygon(i - 6, i);
+                    polygon(points, i - 6, i);
                     break;
             }
         }
-        //// handle loop closing
-        if (shapeMode == PMIDlet.LINE_LOOP) {
-            if (vertexIndex >= 2) {
-                line(vertex[vertexIndex - 2], vertex[vertexIndex - 1], vertex[0], vertex[1]);
-            }
-        }
-        
-        vertexIndex = 0;
     }
     
-    protected void polygon(int startIndex, int endIndex) {
+    protected void polygon(int[] points, int startIndex, int endIndex) {
         //// make sure at least 2 vertices
-        if (endIndex >= (startIndex + 2)) {
+        if ((endIndex >= (startIndex + 2)) && dirtyPolyline(points, startIndex, endIndex)) {
             //// make sure at least 3 vertices for fill
             if (endIndex >= (startIndex + 4)) {
                 if (fill) {
-                    //// insertion sort of edges from top-left to bottom right
-                    Vector edges = new Vector();
-                    int edgeCount = 0;
-                    int[] e1, e2;
-                    int i, j;
-                    int yMin = Integer.MAX_VALUE;
-                    int yMax = Integer.MIN_VALUE;
-                    for (i = startIndex; i <= endIndex; i += 2) {
-                        e1 = new int[EDGE_ARRAY_SIZE];
-                        if (i == startIndex) {
-                            //// handle connecting line between start and endpoints
-                            if (vertex[startIndex + 1] < vertex[endIndex + 1]) {
-                                e1[EDGE_X1] = vertex[startIndex];
-                                e1[EDGE_Y1] = vertex[startIndex + 1];
-                                e1[EDGE_X2] = vertex[endIndex];
-                                e1[EDGE_Y2] = vertex[endIndex + 1];
-                            } else {
-                                e1[EDGE_X1] = vertex[endIndex];
-                                e1[EDGE_Y1] = vertex[endIndex + 1];
-                                e1[EDGE_X2] = vertex[startIndex];
-                                e1[EDGE_Y2] = vertex[startIndex + 1];
-                            }                            
-                        } else if (vertex[i - 1] < vertex[i + 1]) {
-                            e1[EDGE_X1] = vertex[i - 2];
-                            e1[EDGE_Y1] = vertex[i - 1];
-                            e1[EDGE_X2] = vertex[i];
-                            e1[EDGE_Y2] = vertex[i + 1];
-                        } else {
-                            e1[EDGE_X1] = vertex[i];
-                            e1[EDGE_Y1] = vertex[i + 1];
-                            e1[EDGE_X2] = vertex[i - 2];
-                            e1[EDGE_Y2] = vertex[i - 1];
-                        }                            
-                        e1[EDGE_X] = e1[EDGE_X1];
-                        e1[EDGE_DX] = e1[EDGE_X2] - e1[EDGE_X1];
-                        e1[EDGE_DY] = e1[EDGE_Y2] - e1[EDGE_Y1];
-                        
-                        yMin = Math.min(e1[EDGE_Y1], yMin);
-                        yMax = Math.max(e1[EDGE_Y2], yMax);
-                        
-                        for (j = 0; j < edgeCount; j++) {
-                            e2 = (int[]) edges.elementAt(j);
-                            if (e1[EDGE_Y1] < e2[EDGE_Y1]) {
-                                edges.insertElementAt(e1, j);
-                                e1 = null;
-                                break;
-                            } else if (e1[EDGE_Y1] == e2[EDGE_Y1]) {
-                                if (e1[EDGE_X1] < e2[EDGE_X1]) {
-                                    edges.insertElementAt(e1, j);
-                                    e1 = null;
-                                    break;
-                                }
-                            }
-                        }
-                        if (e1 != null) {
-                            edges.addElement(e1);
-                        }
-                        edgeCount += 1;
-                    }
-                    
-                    //// draw scanlines
-                    Vector active = new Vector();
-                    int activeCount = 0;
-                    for (int y = yMin; y <= yMax; y++) {
-                        //// update currently active edges
-                        for (i = activeCount - 1; i >= 0; i--) {
-                            e1 = (int[]) active.elementAt(i);
-                            if (e1[EDGE_Y2] <= y) {
-                                //// remove edges not intersecting current scan line
-                                active.removeElementAt(i);
-                                activeCount--;
-                            } else {
-                                //// update x coordinate
-                                e1[EDGE_X] = (y - e1[EDGE_Y1]) * e1[EDGE_DX] / e1[EDGE_DY] + e1[EDGE_X1];
-                            }
-                        }
-                        
-                        //// re-sort active edge list
-                        Vector newActive = new Vector();
-                        for (i = 0; i < activeCount; i++) {
-                            e1 = (int[]) active.elementAt(i);
-                            
-                            for (j = 0; j < i; j++) {
-                                e2 = (int[]) newActive.elementAt(j);
-                                if (e1[EDGE_X] < e2[EDGE_X]) {
-                                    newActive.insertElementAt(e1, j);
-                                    e1 = null;
-                                    break;
-                                }
-                            }
-                            if (e1 != null) {
-                                newActive.addElement(e1);
-                            }
-                        }
-                        active = newActive;
-                        
-                        //// insertion sort any new intersecting edges into active list
-                        for (i = 0; i < edgeCount; i++) {
-                            e1 = (int[]) edges.elementAt(i);
-                            if (e1[EDGE_Y1] == y) {
-                                for (j = 0; j < activeCount; j++) {
-                                    e2 = (int[]) active.elementAt(j);
-                                    if (e1[EDGE_X] < e2[EDGE_X]) {
-                                        active.insertElementAt(e1, j);
-                                        e1 = null;
-                                        break;
-                                    }
-                                }
-                                if (e1 != null) {
-                                    active.addElement(e1);
-                                }
-                                activeCount++;
-                                
-                                //// remove from edges list
-                                edges.removeElementAt(i);
-                                edgeCount--;
-                                //// indices are shifted down one
-                                i--;
-                            } else {
-                                break;
-                            }
-                        }
-                        //// draw line segments between pairs of edges
-                        for (i = 1; i < activeCount; i += 2) {
-                            e1 = (int[]) active.elementAt(i - 1);
-                            e2 = (int[]) active.elementAt(i);
-                            
-                            bufferg.drawLine(e1[EDGE_X], y, e2[EDGE_X], y, fillColor);
-                        }
-                    }
+                    fillPolygon(points, startIndex, endIndex, fillColor);
                 }
             }
-            if (stroke) {
+            if (stroke && (strokeWidth > 1)) {
+                strokePolyline(points, startIndex, endIndex, true);
+            } else if (stroke) {
                 for (int i = startIndex + 2; i <= endIndex; i += 2) {
-                    line(vertex[i - 2], vertex[i - 1], vertex[i], vertex[i + 1]);
+                    bufferg.line(points[i - 2], points[i - 1], points[i], points[i + 1], strokeColor);
                 }
-                line(vertex[endIndex], vertex[endIndex + 1], vertex[startIndex], vertex[startIndex + 1]);
+                bufferg.line(points[endIndex], points[endIndex + 1], points[startIndex], points[startIndex + 1], strokeColor);
+            }
+        }
+    }
+    
+    /**
+     * Scanline fills the polygon between the given vertex indices. The edge
+     * table and the active edge table are kept in reusable int arrays, so no
+     * objects are allocated per call or per scanline.
+     */
+    protected void fillPolygon(int[] points, int startIndex, int endIndex, int color) {
+        if (transformed) {
+            //// spans run along the rows of the surface, so fill in surface coordinates
+            int[] xy = mapPoints(points, startIndex, endIndex + 2 - startIndex);
+            transformed = false;
+            bufferg.setTranslate(0, 0);
+            fillPolygon(xy, 0, endIndex - startIndex, color);
+            updateTransform();
+            return;
+        }
+        int edgeCount = ((endIndex - startIndex) >> 1) + 1;
+        if (edgeOrder.length < edgeCount) {
+            edges = new int[edgeCount * 2 * EDGE_ARRAY_SIZE];
+            edgeOrder = new int[edgeCount * 2];
+            activeEdges = new int[edgeCount * 2];
+        }
+        int[] edges = this.edges;
+        int[] edgeOrder = this.edgeOrder;
+        int[] activeEdges = this.activeEdges;
+        int i, j, e, n, x1, y1, x2, y2, dx, dy;
+        int yMin = Integer.MAX_VALUE;
+        int yMax = Integer.MIN_VALUE;
+        //// build the edge table, bucketed by starting y
+        for (i = startIndex, n = 0; i <= endIndex; i += 2, n++) {
+            if (i == startIndex) {
+                //// handle connecting line between start and endpoints
+                x1 = points[endIndex];
+                y1 = points[endIndex + 1];
+                x2 = points[startIndex];
+                y2 = points[startIndex + 1];
+            } else {
+                x1 = points[i];
+                y1 = points[i + 1];
+                x2 = points[i - 2];
+                y2 = points[i - 1];
+            }
+            if (y1 > y2) {
+                int swap = x1;
+                x1 = x2;
+                x2 = swap;
+                swap = y1;
+                y1 = y2;
+                y2 = swap;
+            }
+            dx = x2 - x1;
+            dy = y2 - y1;
+            
+            e = n * EDGE_ARRAY_SIZE;
+            edges[e + EDGE_X] = x1;
+            edges[e + EDGE_DX] = dx;
+            edges[e + EDGE_DY] = dy;
+            edges[e + EDGE_X1] = x1;
+            edges[e + EDGE_Y1] = y1;
+            edges[e + EDGE_X2] = x2;
+            edges[e + EDGE_Y2] = y2;
+            //// whole and fractional x increments per scanline, horizontal edges never step
+            edges[e + EDGE_XSTEP] = (dy > 0) ? dx / dy : 0;
+            edges[e + EDGE_ERROR] = 0;
+            edges[e + EDGE_ERROR_STEP] = (dy > 0) ? Math.abs(dx % dy) : 0;
+            
+            yMin = Math.min(y1, yMin);
+            yMax = Math.max(y2, yMax);
+            
+            for (j = n; (j > 0) && (edges[edgeOrder[j - 1] + EDGE_Y1] > y1); j--) {
+                edgeOrder[j] = edgeOrder[j - 1];
+            }
+            edgeOrder[j] = e;
+        }
+        
+        //// only scan lines inside the clip are rasterized
+        int top = clipTop - translateY;
+        yMax = Math.min(yMax, clipBottom - 1 - translateY);
+        
+        //// draw scanlines
+        int nextEdge = 0;
+        int activeCount = 0;
+        int y = yMin;
+        if (y < top) {
+            long steps;
+            for (; (nextEdge < edgeCount) && (edges[edgeOrder[nextEdge] + EDGE_Y1] < top); nextEdge++) {
+                e = edgeOrder[nextEdge];
+                if (edges[e + EDGE_Y2] > top) {
+                    //// place the edge on the scan line above the clip, as if it had been stepped there
+                    steps = top - 1 - edges[e + EDGE_Y1];
+                    dy = edges[e + EDGE_DY];
+                    edges[e + EDGE_X] = edges[e + EDGE_X1] + (int) (steps * edges[e + EDGE_DX] / dy);
+                    edges[e + EDGE_ERROR] = (int) ((steps * edges[e + EDGE_ERROR_STEP]) % dy);
+                    activeEdges[activeCount++] = e;
+                }
+            }
+            y = top;
+        }
+        while (y <= yMax) {
+            //// retire edges not intersecting current scan line, step the rest
+            for (i = 0, j = 0; i < activeCount; i++) {
+                e = activeEdges[i];
+                if (edges[e + EDGE_Y2] > y) {
+                    //// incremental equivalent of (y - y1) * dx / dy + x1
+                    edges[e + EDGE_X] += edges[e + EDGE_XSTEP];
+                    edges[e + EDGE_ERROR] += edges[e + EDGE_ERROR_STEP];
+                    if (edges[e + EDGE_ERROR] >= edges[e + EDGE_DY]) {
+                        edges[e + EDGE_ERROR] -= edges[e + EDGE_DY];
+                        edges[e + EDGE_X] += (edges[e + EDGE_DX] < 0) ? -1 : 1;
+                    }
+                    activeEdges[j++] = e;
+                }
+            }
+            activeCount = j;
+            
+            //// add edges starting on this scan line
+            while ((nextEdge < edgeCount) && (edges[edgeOrder[nextEdge] + EDGE_Y1] == y)) {
+                activeEdges[activeCount++] = edgeOrder[nextEdge++];
+            }
+            
+            //// insertion sort by x, the list is nearly sorted from the previous scan line
+            for (i = 1; i < activeCount; i++) {
+                e = activeEdges[i];
+                x1 = edges[e + EDGE_X];
+                for (j = i; (j > 0) && (edges[activeEdges[j - 1] + EDGE_X] > x1); j--) {
+                    activeEdges[j] = activeEdges[j - 1];
+                }
+                activeEdges[j] = e;
+            }
+            
+            //// draw line segments between pairs of edges
+            for (i = 1; i < activeCount; i += 2) {
+                bufferg.span(edges[activeEdges[i - 1] + EDGE_X], edges[activeEdges[i] + EDGE_X], y, color);
+            }
+            
+            if (activeCount > 0) {
+                y++;
+            } else if (nextEdge < edgeCount) {
+                //// skip empty scan lines up to the next edge
+                y = edges[edgeOrder[nextEdge] + EDGE_Y1];
+            } else {
+                break;
             }
         }
     }
@@ -665,99 +1544,449 @@ public class PCanvas extends SurfaceView implements
                           dx0, dx1, dy0, dy1);        
     }
     
-    protected void plotCurveVertices(int x0, int y0, int x1, int y1, int dx0, int dx1, int dy0, int dy1) {
-        int x, y, t, t2, t3, h0, h1, h2, h3;
-        vertex(x0 >> 8, y0 >> 8);
-        for (t = 0; t < 256 /* 1.0f */; t += 26 /* 0.1f */) {
-            t2 = (t * t) >> 8;
-            t3 = (t * t2) >> 8;
-
-            h0 = ((512 /* 2.0f */ * t3) >> 8) - ((768 /* 3.0f */ * t2) >> 8) + 256 /* 1.0f */;
-            h1 = ((-512 /* -2.0f */ * t3) >> 8) + ((768 /* 3.0f */ * t2) >> 8);
-            h2 = t3 - ((512 /* 2.0f */ * t2) >> 8) + t;
-            h3 = t3 - t2;
-
-            x = ((h0 * x0) >> 8) + ((h1 * x1) >> 8) + ((h2 * dx0) >> 8) + ((h3 * dx1) >> 8);
-            y = ((h0 * y0) >> 8) + ((h1 * y1) >> 8) + ((h2 * dy0) >> 8) + ((h3 * dy1) >> 8);
-            vertex(x >> 8, y >> 8);
+    /**
+     * Subdivides curves into as few lines as keep them within tolerance of
+     * the true curve, instead of a fixed number of lines per segment. The
+     * tolerance is a fixed point distance in pixels, PMIDlet.ONE is one
+     * pixel.
+     */
+    public void adaptiveCurves(int tolerance) {
+        if (tolerance <= 0) {
+            throw new IllegalArgumentException("Invalid tolerance");
+        }
+        curveTolerance = tolerance;
+    }
+    
+    public void noAdaptiveCurves() {
+        curveTolerance = 0;
+    }
+    
+    /**
+     * Adds the vertices of the Hermite segment from (x0, y0) to (x1, y1)
+     * with tangents (dx0, dy0) and (dx1, dy1), all in 8-bit fixed point.
+     * The cubic is stepped with forward differences, so each vertex costs
+     * a few additions.
+     */
+    protected void plotCurveVertices(int x0, int y0, int x1, int y1, int dx0, int dx1, int dy0, int dy1) {
+        int steps = CURVE_STEPS;
+        if (curveTolerance > 0) {
+            //// second differences of the equivalent Bezier control points bound how far
+            //// the curve bends away from its chords, which falls with the square of the steps
+            int bend = Math.max(Math.abs(3 * (x1 - x0) - 2 * dx0 - dx1) + Math.abs(3 * (y1 - y0) - 2 * dy0 - dy1),
+                                Math.abs(3 * (x0 - x1) + dx0 + 2 * dx1) + Math.abs(3 * (y0 - y1) + dy0 + 2 * dy1));
+            //// steps = sqrt(3/4 * (bend / 3) / tolerance)
+            long limit = (long) bend / 4;
+            steps = 1;
+            while ((steps < CURVE_MAX_STEPS) && ((long) steps * steps * curveTolerance < limit)) {
+                steps++;
+            }
+        }
+        vertex(x0 >> 8, y0 >> 8);
+        if (steps > 1) {
+            //// p(t) = a t^3 + b t^2 + c t + p0, stepped by 1 / steps
+            long n = steps;
+            long n3 = n * n * n;
+            long ax = 2L * (x0 - x1) + dx0 + dx1;
+            long ay = 2L * (y0 - y1) + dy0 + dy1;
+            long bx = 3L * (x1 - x0) - 2L * dx0 - dx1;
+            long by = 3L * (y1 - y0) - 2L * dy0 - dy1;
+            long x = (long) x0 << CURVE_SHIFT;
+            long y = (long) y0 << CURVE_SHIFT;
+            long ddd = 6L << CURVE_SHIFT;
+            long dddx = ax * ddd / n3;
+            long dddy = ay * ddd / n3;
+            long ddx = ((6 * ax + 2 * bx * n) << CURVE_SHIFT) / n3;
+            long ddy = ((6 * ay + 2 * by * n) << CURVE_SHIFT) / n3;
+            long dx = ((ax + bx * n + dx0 * n * n) << CURVE_SHIFT) / n3;
+            long dy = ((ay + by * n + dy0 * n * n) << CURVE_SHIFT) / n3;
+            for (int i = 1; i < steps; i++) {
+                x += dx;
+                y += dy;
+                dx += ddx;
+                dy += ddy;
+                ddx += dddx;
+                ddy += dddy;
+                vertex((int) (x >> (CURVE_SHIFT + 8)), (int) (y >> (CURVE_SHIFT + 8)));
+            }
+        }
+        vertex(x1 >> 8, y1 >> 8);
+    }
+    
+    public void translate(int x, int y) {
+        if (record != null) {
+            record.translate(x, y);
+        } else {
+            translateImpl(x, y);
+        }
+    }
+    
+    protected void translateImpl(int x, int y) {
+        if (transformed) {
+            m02 += (int) ((long) m00 * x + (long) m01 * y);
+            m12 += (int) ((long) m10 * x + (long) m11 * y);
+            updateTransform();
+        } else {
+            translateX += x;
+            translateY += y;
+            m02 = translateX << 16;
+            m12 = translateY << 16;
+            bufferg.setTranslate(translateX, translateY);
+        }
+    }
+    
+    /**
+     * Rotates what is drawn next by the angle, in fixed point radians.
+     */
+    public void rotate(int angle) {
+        double radians = angle / (double) PMIDlet.ONE;
+        int cos = (int) Math.round(Math.cos(radians) * MATRIX_ONE);
+        int sin = (int) Math.round(Math.sin(radians) * MATRIX_ONE);
+        transform(cos, -sin, 0, sin, cos, 0);
+    }
+    
+    /**
+     * Scales what is drawn next by the fixed point factor.
+     */
+    public void scale(int s) {
+        scale(s, s);
+    }
+    
+    public void scale(int x, int y) {
+        int shift = 16 - PMIDlet.FP_PRECISION;
+        transform(x << shift, 0, 0, 0, y << shift, 0);
+    }
+    
+    /**
+     * Shears what is drawn next along the x axis by the angle, in fixed
+     * point radians.
+     */
+    public void shearX(int angle) {
+        transform(MATRIX_ONE, tan(angle), 0, 0, MATRIX_ONE, 0);
+    }
+    
+    public void shearY(int angle) {
+        transform(MATRIX_ONE, 0, 0, tan(angle), MATRIX_ONE, 0);
+    }
+    
+    private static int tan(int angle) {
+        return (int) Math.round(Math.tan(angle / (double) PMIDlet.ONE) * MATRIX_ONE);
+    }
+    
+    /**
+     * Multiplies the current transform by the given one, in 16.16 fixed
+     * point.
+     */
+    protected void transform(int n00, int n01, int n02, int n10, int n11, int n12) {
+        if (record != null) {
+            record.transform(n00, n01, n02, n10, n11, n12);
+        } else {
+            transformImpl(n00, n01, n02, n10, n11, n12);
+        }
+    }
+    
+    protected void transformImpl(int n00, int n01, int n02, int n10, int n11, int n12) {
+        long a = m00, b = m01, d = m10, e = m11;
+        m00 = (int) ((a * n00 + b * n10) >> 16);
+        m01 = (int) ((a * n01 + b * n11) >> 16);
+        m02 += (int) ((a * n02 + b * n12) >> 16);
+        m10 = (int) ((d * n00 + e * n10) >> 16);
+        m11 = (int) ((d * n01 + e * n11) >> 16);
+        m12 += (int) ((d * n02 + e * n12) >> 16);
+        updateTransform();
+    }
+    
+    /**
+     * Hands the transform to the renderer after it changed. Transforms other
+     * than whole pixel translations are left to renderers that support them,
+     * otherwise the renderer is not translated and vertices are transformed
+     * with mapPoints() before they are drawn.
+     */
+    protected void updateTransform() {
+        transformed = (m00 != MATRIX_ONE) || (m01 != 0) || (m10 != 0) || (m11 != MATRIX_ONE) ||
+                      ((m02 & 0xffff) != 0) || ((m12 & 0xffff) != 0);
+        if (!transformed) {
+            translateX = m02 >> 16;
+            translateY = m12 >> 16;
+            bufferg.setTranslate(translateX, translateY);
+        } else {
+            translateX = translateY = 0;
+            if (nativeTransform) {
+                bufferg.setTransform(m00, m01, m02, m10, m11, m12);
+            } else {
+                bufferg.setTranslate(0, 0);
+            }
         }
-        vertex(x1 >> 8, y1 >> 8);
     }
     
-    public void translate(int x, int y) {
-        bufferg.translate(x, y);
+    protected int mapX(int x, int y) {
+        return (int) (((long) m00 * x + (long) m01 * y + m02 + 0x8000) >> 16);
+    }
+    
+    protected int mapY(int x, int y) {
+        return (int) (((long) m10 * x + (long) m11 * y + m12 + 0x8000) >> 16);
+    }
+    
+    /**
+     * Transforms length / 2 vertices starting at offset into surface
+     * coordinates, rounded to whole pixels, and returns them at the start of
+     * the mapped array.
+     */
+    protected int[] mapPoints(int[] xy, int offset, int length) {
+        if (mapped.length < length) {
+            mapped = new int[Math.max(length, mapped.length * 2)];
+        }
+        int[] mapped = this.mapped;
+        long a = m00, b = m01, c = m02 + 0x8000L;
+        long d = m10, e = m11, f = m12 + 0x8000L;
+        int x, y;
+        for (int i = 0; i < length; i += 2) {
+            x = xy[offset + i];
+            y = xy[offset + i + 1];
+            mapped[i] = (int) ((a * x + b * y + c) >> 16);
+            mapped[i + 1] = (int) ((d * x + e * y + f) >> 16);
+        }
+        return mapped;
+    }
+    
+    /**
+     * Stores the surface bounds of the transformed rectangle in bounds, as
+     * left, top, right and bottom, rounded outwards.
+     */
+    protected void mapBounds(int x1, int y1, int x2, int y2) {
+        long ax1 = (long) m00 * x1, ax2 = (long) m00 * x2;
+        long by1 = (long) m01 * y1, by2 = (long) m01 * y2;
+        long dx1 = (long) m10 * x1, dx2 = (long) m10 * x2;
+        long ey1 = (long) m11 * y1, ey2 = (long) m11 * y2;
+        long left = Math.min(ax1, ax2) + Math.min(by1, by2) + m02;
+        long right = Math.max(ax1, ax2) + Math.max(by1, by2) + m02;
+        long top = Math.min(dx1, dx2) + Math.min(ey1, ey2) + m12;
+        long bottom = Math.max(dx1, dx2) + Math.max(ey1, ey2) + m12;
+        bounds[0] = clamp(left >> 16);
+        bounds[1] = clamp(top >> 16);
+        bounds[2] = clamp((right + 0xffff) >> 16);
+        bounds[3] = clamp((bottom + 0xffff) >> 16);
+    }
+    
+    private static int clamp(long value) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
     }
     
     public void clip(int x, int y, int width, int height) {
-        int x2 = x + width;
-        int y2 = y + height;
-        //// get current clip
-        int clipX = bufferg.getClipX();
-        int clipY = bufferg.getClipY();
-        int clipX2 = clipX + bufferg.getClipWidth();
-        int clipY2 = clipY + bufferg.getClipHeight();
+        if (record != null) {
+            record.clip(x, y, width, height);
+        } else {
+            clipImpl(x, y, width, height);
+        }
+    }
+    
+    protected void clipImpl(int x, int y, int width, int height) {
+        //// work in surface coordinates, a transformed clip is widened to its upright bounds
+        int x2, y2;
+        if (transformed) {
+            mapBounds(x, y, x + width, y + height);
+            x = bounds[0];
+            y = bounds[1];
+            x2 = bounds[2];
+            y2 = bounds[3];
+        } else {
+            x += translateX;
+            y += translateY;
+            x2 = x + width;
+            y2 = y + height;
+        }
         //// check for intersection
-        if (!((x >= clipX2) || (x2 <= clipX) || (y >= clipY2) || (y2 <= clipY))) {
+        if (!((x >= clipRight) || (x2 <= clipLeft) || (y >= clipBottom) || (y2 <= clipTop))) {
             //// intersect
-            int intersectX = Math.max(x, clipX);
-            int intersectY = Math.max(y, clipY);
-            int intersectWidth = Math.min(x2, clipX2) - intersectX;
-            int intersectHeight = Math.min(y2, clipY2) - intersectY;
-            bufferg.setClip(intersectX, intersectY, intersectWidth, intersectHeight);
+            clipLeft = Math.max(x, clipLeft);
+            clipTop = Math.max(y, clipTop);
+            clipRight = Math.min(x2, clipRight);
+            clipBottom = Math.min(y2, clipBottom);
+            bufferg.setClip(clipLeft, clipTop, clipRight, clipBottom);
         }
-        //System.out.println("clip: translation=[" + bufferg.getTranslateX() + ", " + bufferg.getTranslateY() + "], clip=[" + bufferg.getClipX() + ", " + bufferg.getClipY() + ", " + bufferg.getClipWidth() + ", " + bufferg.getClipHeight() + "]");
     }
     
     public void pushMatrix() {
+        if (record != null) {
+            record.pushMatrix();
+        } else {
+            pushMatrixImpl();
+        }
+    }
+    
+    protected void pushMatrixImpl() {
         if (stackIndex == stack.length) {
             int[] old = stack;
             stack = new int[stackIndex * 2];
             System.arraycopy(old, 0, stack, 0, stackIndex);
         }
-        stack[stackIndex++] = bufferg.getTranslateX();
-        stack[stackIndex++] = bufferg.getTranslateY();
-        stack[stackIndex++] = bufferg.getClipX();
-        stack[stackIndex++] = bufferg.getClipY();
-        stack[stackIndex++] = bufferg.getClipWidth();
-        stack[stackIndex++] = bufferg.getClipHeight();
-        //System.out.println("push: translation=[" + bufferg.getTranslateX() + ", " + bufferg.getTranslateY() + "], clip=[" + bufferg.getClipX() + ", " + bufferg.getClipY() + ", " + bufferg.getClipWidth() + ", " + bufferg.getClipHeight() + "]");
+        stack[stackIndex++] = m00;
+        stack[stackIndex++] = m01;
+        stack[stackIndex++] = m02;
+        stack[stackIndex++] = m10;
+        stack[stackIndex++] = m11;
+        stack[stackIndex++] = m12;
+        stack[stackIndex++] = clipLeft;
+        stack[stackIndex++] = clipTop;
+        stack[stackIndex++] = clipRight;
+        stack[stackIndex++] = clipBottom;
     }
     
     public void popMatrix() {
+        if (record != null) {
+            record.popMatrix();
+        } else {
+            popMatrixImpl();
+        }
+    }
+    
+    protected void popMatrixImpl() {
         if (stackIndex > 0) {
-            stackIndex -= 6;
-            int translateX = stack[stackIndex++];
-            int translateY = stack[stackIndex++];
-            bufferg.translate(translateX - bufferg.getTranslateX(), translateY - bufferg.getTranslateY());
-            int clipX = stack[stackIndex++];
-            int clipY = stack[stackIndex++];
-            int clipWidth = stack[stackIndex++];
-            int clipHeight = stack[stackIndex++];
-            bufferg.setClip(clipX, clipY, clipWidth, clipHeight);
-            stackIndex -= 6;
-            //System.out.println("pop: translation=[" + bufferg.getTranslateX() + ", " + bufferg.getTranslateY() + "], clip=[" + bufferg.getClipX() + ", " + bufferg.getClipY() + ", " + bufferg.getClipWidth() + ", " + bufferg.getClipHeight() + "]");
+            stackIndex -= STACK_FRAME;
+            int i = stackIndex;
+            m00 = stack[i++];
+            m01 = stack[i++];
+            m02 = stack[i++];
+            m10 = stack[i++];
+            m11 = stack[i++];
+            m12 = stack[i++];
+            clipLeft = stack[i++];
+            clipTop = stack[i++];
+            clipRight = stack[i++];
+            clipBottom = stack[i++];
+            bufferg.setClip(clipLeft, clipTop, clipRight, clipBottom);
+            updateTransform();
         }
     }
     
     public void resetMatrix() {
+        if (record != null) {
+            record.resetMatrix();
+        } else {
+            resetMatrixImpl();
+        }
+    }
+    
+    protected void resetMatrixImpl() {
         stackIndex = 0;
         //midp version
         //bufferg.translate(-bufferg.getTranslateX(), -bufferg.getTranslateY());
         //bufferg.setClip(0, 0, width, height);
-        bufferg.getMatrix().reset();
-        bufferg.clipRect(0, 0, width, height);
+        bufferg.setTranslate(0, 0);
+        bufferg.setClip(0, 0, width, height);
+        m00 = m11 = MATRIX_ONE;
+        m01 = m02 = m10 = m12 = 0;
+        transformed = false;
+        translateX = translateY = 0;
+        clipLeft = clipTop = 0;
+        clipRight = width;
+        clipBottom = height;
+    }
+    
+    /**
+     * Adds a rectangle, in current drawing coordinates, to the region of the
+     * surface that changed this frame. The rectangle is moved to surface
+     * coordinates and clamped to the current clip, which drawing never
+     * exceeds. Returns false if the rectangle is entirely outside the clip.
+     */
+    protected boolean dirty(int x1, int y1, int x2, int y2) {
+        if (transformed) {
+            mapBounds(x1, y1, x2, y2);
+            return dirtySurface(bounds[0], bounds[1], bounds[2], bounds[3]);
+        } else {
+            return dirtySurface(x1 + translateX, y1 + translateY, x2 + translateX, y2 + translateY);
+        }
+    }
+    
+    /**
+     * Adds a rectangle in surface coordinates to the dirty region, clamped
+     * to the current clip. Returns false if nothing of it is inside the clip.
+     */
+    protected boolean dirtySurface(int x1, int y1, int x2, int y2) {
+        x1 = Math.max(x1, clipLeft);
+        y1 = Math.max(y1, clipTop);
+        x2 = Math.min(x2, clipRight);
+        y2 = Math.min(y2, clipBottom);
+        if ((x1 < x2) && (y1 < y2)) {
+            if (dirtyLeft < dirtyRight) {
+                dirtyLeft = Math.min(dirtyLeft, x1);
+                dirtyTop = Math.min(dirtyTop, y1);
+                dirtyRight = Math.max(dirtyRight, x2);
+                dirtyBottom = Math.max(dirtyBottom, y2);
+            } else {
+                dirtyLeft = x1;
+                dirtyTop = y1;
+                dirtyRight = x2;
+                dirtyBottom = y2;
+            }
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Culls a primitive against the clip before it is drawn. Its bounds in
+     * drawing coordinates are added to the dirty region if dirty is true,
+     * and the primitive is counted as drawn, or as culled if it is entirely
+     * outside the clip, in which case false is returned.
+     */
+    protected boolean visible(int x1, int y1, int x2, int y2, boolean dirty) {
+        int left, top, right, bottom;
+        if (transformed) {
+            mapBounds(x1, y1, x2, y2);
+            left = bounds[0];
+            top = bounds[1];
+            right = bounds[2];
+            bottom = bounds[3];
+        } else {
+            left = x1 + translateX;
+            top = y1 + translateY;
+            right = x2 + translateX;
+            bottom = y2 + translateY;
+        }
+        if ((right <= clipLeft) || (left >= clipRight) || (bottom <= clipTop) || (top >= clipBottom)) {
+            culledPrimitives++;
+            return false;
+        }
+        drawnPrimitives++;
+        if (dirty) {
+            dirtySurface(left, top, right, bottom);
+        }
+        return true;
+    }
+    
+    /**
+     * Adds the bounding box of a stroked or filled shape to the dirty region,
+     * widened to cover the stroke weight, caps and anti-aliasing. Returns
+     * false, without adding anything, if the shape is outside the clip.
+     */
+    protected boolean dirtyShape(int x1, int y1, int x2, int y2) {
+        int pad = stroke ? strokeWidth + 1 : 1;
+        return visible(Math.min(x1, x2) - pad, Math.min(y1, y2) - pad, Math.max(x1, x2) + pad, Math.max(y1, y2) + pad, true);
     }
     
     public void background(int gray) {
         if (((gray & 0xff000000) == 0) && (gray <= colorMaxX)) {
-        	bufferg.drawColor(color(gray, colorMaxA));
-        } else {
-            bufferg.drawColor(gray);
+            gray = color(gray, colorMaxA);
         }    
+        if (record != null) {
+            record.background(gray);
+        } else {
+            backgroundImpl(gray);
+        }
     }
     
     public void background(int value1, int value2, int value3) {
-    	bufferg.drawColor(color(value1, value2, value3));
+        int color = color(value1, value2, value3);
+        if (record != null) {
+            record.background(color);
+        } else {
+            backgroundImpl(color);
+        }
+    }
+    
+    protected void backgroundImpl(int color) {
+        dirtySurface(clipLeft, clipTop, clipRight, clipBottom);
+    	bufferg.background(color);
     }
     
     public void background(PImage img) {
@@ -765,7 +1994,40 @@ public class PCanvas extends SurfaceView implements
     }
     
     public void image(PImage img, int x, int y) {
-        img.draw(bufferg, x, y);
+        if (record != null) {
+            record.image(img, x, y);
+        } else {
+            imageImpl(img, x, y);
+        }
+    }
+    
+    protected void imageImpl(PImage img, int x, int y) {
+        if (transformed && !nativeTransform) {
+            //// the software renderer draws images upright and unscaled, at the transformed position
+            transformed = false;
+            imageImpl(img, mapX(x, y), mapY(x, y));
+            transformed = true;
+            return;
+        }
+        if (visible(x, y, x + img.width, y + img.height, true)) {
+            bufferg.image(img, x, y);
+        }
+    }
+    
+    /**
+     * Draws count images, image i at xy[2i], xy[2i + 1], such as the
+     * regions of an atlas. In retained mode they are recorded as a single
+     * command; each image is still drawn by its own renderer call, the
+     * Canvas having no call that draws several bitmaps.
+     */
+    public void images(PImage[] images, int[] xy, int count) {
+        if (record != null) {
+            record.images(images, xy, count);
+        } else {
+            for (int i = 0, j = 0; i < count; i++, j += 2) {
+                imageImpl(images[i], xy[j], xy[j + 1]);
+            }
+        }
     }
     
     public void image(PImage img, int sx, int sy, int swidth, int sheight, int dx, int dy) {
@@ -773,10 +2035,27 @@ public class PCanvas extends SurfaceView implements
             swidth = swidth - sx;
             sheight = sheight - sy;
         }
-        pushMatrix();
-        clip(dx, dy, swidth, sheight);
-        img.draw(bufferg, dx - sx, dy - sy);
-        popMatrix();
+        if (record != null) {
+            record.image(img, sx, sy, swidth, sheight, dx, dy);
+        } else {
+            imageImpl(img, sx, sy, swidth, sheight, dx, dy);
+        }
+    }
+    
+    protected void imageImpl(PImage img, int sx, int sy, int swidth, int sheight, int dx, int dy) {
+        if (transformed && !nativeTransform) {
+            transformed = false;
+            imageImpl(img, sx, sy, swidth, sheight, mapX(dx, dy), mapY(dx, dy));
+            transformed = true;
+            return;
+        }
+        if (!visible(dx, dy, dx + swidth, dy + sheight, true)) {
+            return;
+        }
+        pushMatrixImpl();
+        clipImpl(dx, dy, swidth, sheight);
+        bufferg.image(img, dx - sx, dy - sy);
+        popMatrixImpl();
     }
     
     public void imageMode(int mode) {
@@ -786,6 +2065,14 @@ public class PCanvas extends SurfaceView implements
         imageMode = mode;
     }
     
+    /**
+     * Selects bilinear filtering for image copies that scale, or the
+     * nearest source pixel if smooth is false, which is the default.
+     */
+    public void imageSmooth(boolean smooth) {
+        imageSmooth = smooth;
+    }
+    
     public void textFont(PFont font) {
         textFont = font;
         textLeading = font.height;
@@ -802,6 +2089,7 @@ public class PCanvas extends SurfaceView implements
             (colorMaxZ == 255)) {
             colorModeRGB255 = true;
         }
+        updateColorTables();
     }
     
     public void colorMode(int mode, int range1, int range2, int range3) {
@@ -812,8 +2100,66 @@ public class PCanvas extends SurfaceView implements
     }
     
     public void colorMode(int mode, int range1, int range2, int range3, int range4) {
-        colorMode(mode, range1, range2, range3);
         colorMaxA = range4;
+        colorMode(mode, range1, range2, range3);
+    }
+    
+    /**
+     * Rebuilds the lookup tables color() converts with after the color mode
+     * or a range changed.
+     */
+    protected void updateColorTables() {
+        int[] key = colorTableKey;
+        if ((key[0] == colorMode) && (key[1] == colorMaxX) && (key[2] == colorMaxY) &&
+            (key[3] == colorMaxZ) && (key[4] == colorMaxA)) {
+            return;
+        }
+        key[0] = colorMode;
+        key[1] = colorMaxX;
+        key[2] = colorMaxY;
+        key[3] = colorMaxZ;
+        key[4] = colorMaxA;
+        colorTables = (Math.min(Math.min(colorMaxX, colorMaxY), Math.min(colorMaxZ, colorMaxA)) > 0) &&
+                      (Math.max(Math.max(colorMaxX, colorMaxY), Math.max(colorMaxZ, colorMaxA)) <= COLOR_TABLE_MAX);
+        if (!colorTables) {
+            return;
+        }
+        colorScaleX = scaleTable(colorScaleX, colorMaxX, 255);
+        colorScaleZ = scaleTable(colorScaleZ, colorMaxZ, 255);
+        colorScaleA = scaleTable(colorScaleA, colorMaxA, 255);
+        if (colorMode == PMIDlet.RGB) {
+            colorScaleY = scaleTable(colorScaleY, colorMaxY, 255);
+        } else {
+            saturations = scaleTable(saturations, colorMaxY, PMIDlet.ONE);
+            brightnesses = scaleTable(brightnesses, colorMaxZ, PMIDlet.ONE);
+            if ((hueSectors == null) || (hueSectors.length <= colorMaxX)) {
+                hueSectors = new int[colorMaxX + 1];
+            }
+            for (int i = 0; i <= colorMaxX; i++) {
+                hueSectors[i] = hueSector(i, colorMaxX);
+            }
+        }
+    }
+    
+    private static int[] scaleTable(int[] table, int max, int scale) {
+        if ((table == null) || (table.length <= max)) {
+            table = new int[max + 1];
+        }
+        for (int i = 0; i <= max; i++) {
+            table[i] = i * scale / max;
+        }
+        return table;
+    }
+    
+    /**
+     * Returns the sector of the hue in the high 16 bits and the fixed point
+     * fraction of the way through the sector in the low 16 bits. The top of
+     * the range wraps around to red.
+     */
+    private static int hueSector(int hue, int max) {
+        int sector = hue * 6 / max;
+        int fraction = (hue << PMIDlet.FP_PRECISION) * 6 / max - (sector << PMIDlet.FP_PRECISION);
+        return ((sector % 6) << 16) | fraction;
     }
     
     public int color(int gray) {
@@ -833,10 +2179,11 @@ public class PCanvas extends SurfaceView implements
         if (alpha > colorMaxA) {
             alpha = colorMaxA;
         }
-        if (!colorModeRGB255) {
+        if (colorTables) {
+            gray = colorScaleX[gray];
+            alpha = colorScaleA[alpha];
+        } else {
             gray = gray * 255 / colorMaxX;
-        }
-        if (colorMaxA != 255) {
             alpha = alpha * 255 / colorMaxA;
         }
         
@@ -872,104 +2219,155 @@ public class PCanvas extends SurfaceView implements
         if (alpha > colorMaxA) {
             alpha = colorMaxA;
         }
+        alpha = colorTables ? colorScaleA[alpha] : alpha * 255 / colorMaxA;
         
-        if (!colorModeRGB255) {
-            if (colorMode == PMIDlet.RGB) {
+        if (colorModeRGB255) {
+            return (alpha << 24) | (value1 << 16) | (value2 << 8) | value3;
+        } else if (colorMode == PMIDlet.RGB) {
+            if (colorTables) {
+                value1 = colorScaleX[value1];
+                value2 = colorScaleY[value2];
+                value3 = colorScaleZ[value3];
+            } else {
                 value1 = value1 * 255 / colorMaxX;
                 value2 = value2 * 255 / colorMaxY;
                 value3 = value3 * 255 / colorMaxZ;
-            } else {
-                //// convert from HSB to RGB
-                if (value2 == 0) {
-                    //// gray
-                    value1 = value3 * 255 / colorMaxZ;
-                    value2 = value3 * 255 / colorMaxZ;
-                    value3 = value3 * 255 / colorMaxZ;
-                } else {                
-                    int y = (value2 << PMIDlet.FP_PRECISION) / colorMaxY;
-                    int z = (value3 << PMIDlet.FP_PRECISION) / colorMaxZ;
-
-                    int h = value1 * 6 / colorMaxX % 6;     
-
-                    int f = (value1 << PMIDlet.FP_PRECISION) * 6 / colorMaxX - (h << PMIDlet.FP_PRECISION);
-                    int p = midlet.mul(z, PMIDlet.ONE - y);
-                    int q = midlet.mul(z, PMIDlet.ONE - midlet.mul(y, f));
-                    int t = midlet.mul(z, PMIDlet.ONE - midlet.mul(y, PMIDlet.ONE - f));
-                    switch (h) {
-                        case 0:
-                            value1 = (z * 255) >> PMIDlet.FP_PRECISION;
-                            value2 = (t * 255) >> PMIDlet.FP_PRECISION;
-                            value3 = (p * 255) >> PMIDlet.FP_PRECISION;
-                            break;
-                        case 1:
-                            value1 = (q * 255) >> PMIDlet.FP_PRECISION;
-                            value2 = (z * 255) >> PMIDlet.FP_PRECISION;
-                            value3 = (p * 255) >> PMIDlet.FP_PRECISION;
-                            break;
-                        case 2:
-                            value1 = (p * 255) >> PMIDlet.FP_PRECISION;
-                            value2 = (z * 255) >> PMIDlet.FP_PRECISION;
-                            value3 = (t * 255) >> PMIDlet.FP_PRECISION;
-                            break;
-                        case 3:
-                            value1 = (p * 255) >> PMIDlet.FP_PRECISION;
-                            value2 = (q * 255) >> PMIDlet.FP_PRECISION;
-                            value3 = (z * 255) >> PMIDlet.FP_PRECISION;
-                            break;
-                        case 4:
-                            value1 = (t * 255) >> PMIDlet.FP_PRECISION;
-                            value2 = (p * 255) >> PMIDlet.FP_PRECISION;
-                            value3 = (z * 255) >> PMIDlet.FP_PRECISION;
-                            break;
-                        case 5:
-                            value1 = (z * 255) >> PMIDlet.FP_PRECISION;
-                            value2 = (p * 255) >> PMIDlet.FP_PRECISION;
-                            value3 = (q * 255) >> PMIDlet.FP_PRECISION;
-                            break;
-                    }
-                }
             }
+            return (alpha << 24) | (value1 << 16) | (value2 << 8) | value3;
+        } else if (value2 == 0) {
+            //// gray
+            value3 = colorTables ? colorScaleZ[value3] : value3 * 255 / colorMaxZ;
+            return (alpha << 24) | (value3 << 16) | (value3 << 8) | value3;
+        } else if (colorTables) {
+            return (alpha << 24) | hsb(hueSectors[value1], saturations[value2], brightnesses[value3]);
+        } else {
+            return (alpha << 24) | hsb(hueSector(value1, colorMaxX),
+                                       (value2 << PMIDlet.FP_PRECISION) / colorMaxY,
+                                       (value3 << PMIDlet.FP_PRECISION) / colorMaxZ);
         }
-        if (alpha != 255) {
-            alpha = alpha * 255 / colorMaxA;
+    }
+    
+    /**
+     * Converts a packed hue sector and fixed point saturation and brightness
+     * to RGB.
+     */
+    private static int hsb(int hue, int y, int z) {
+        int f = hue & 0xffff;
+        int p = mul(z, PMIDlet.ONE - y);
+        int q = mul(z, PMIDlet.ONE - mul(y, f));
+        int t = mul(z, PMIDlet.ONE - mul(y, PMIDlet.ONE - f));
+        int r, g, b;
+        switch (hue >> 16) {
+            case 0:
+                r = z; g = t; b = p;
+                break;
+            case 1:
+                r = q; g = z; b = p;
+                break;
+            case 2:
+                r = p; g = z; b = t;
+                break;
+            case 3:
+                r = p; g = q; b = z;
+                break;
+            case 4:
+                r = t; g = p; b = z;
+                break;
+            default:
+                r = z; g = p; b = q;
+                break;
         }
-        
-        return (alpha << 24) | (value1 << 16) | (value2 << 8) | value3;
+        return (((r * 255) >> PMIDlet.FP_PRECISION) << 16) |
+               (((g * 255) >> PMIDlet.FP_PRECISION) << 8) |
+               ((b * 255) >> PMIDlet.FP_PRECISION);
+    }
+    
+    /**
+     * Converts whole arrays of color values in the current color mode, with
+     * the alpha at its maximum, into out.
+     */
+    public void colors(int[] value1, int[] value2, int[] value3, int[] out) {
+        for (int i = 0, length = out.length; i < length; i++) {
+            out[i] = color(value1[i], value2[i], value3[i], colorMaxA);
+        }
+    }
+    
+    //// same as PMIDlet.mul(), which needs a PMIDlet instance
+    private static int mul(int value1, int value2) {
+        return (value1 * value2) >> PMIDlet.FP_PRECISION;
     }
     
     public void stroke(int gray) {
-        stroke = true;
         if (((gray & 0xff000000) == 0) && (gray <= colorMaxX)) {
-            strokeColor.setColor(color(gray, colorMaxA));
+            gray = color(gray, colorMaxA);
+        }
+        if (record != null) {
+            record.stroke(gray);
         } else {
-            strokeColor.setColor(gray);
+            strokeImpl(gray);
         }
     }
     
     public void stroke(int value1, int value2, int value3) {
+        int color = color(value1, value2, value3, colorMaxA);
+        if (record != null) {
+            record.stroke(color);
+        } else {
+            strokeImpl(color);
+        }
+    }
+    
+    protected void strokeImpl(int color) {
         stroke = true;
-        strokeColor.setColor(color(value1, value2, value3, colorMaxA));
+        strokeColor = color;
     }
     
     public void noStroke() {
+        if (record != null) {
+            record.noStroke();
+        } else {
+            noStrokeImpl();
+        }
+    }
+    
+    protected void noStrokeImpl() {
         stroke = false;
     }
     
     public void fill(int gray) {
-        fill = true;
         if (((gray & 0xff000000) == 0) && (gray <= colorMaxX)) {
-            fillColor.setColor(color(gray, colorMaxA));
-        } else {
-            fillColor.setColor(gray);
+            gray = color(gray, colorMaxA);
         }    
+        if (record != null) {
+            record.fill(gray);
+        } else {
+            fillImpl(gray);
+        }
     }
     
     public void fill(int value1, int value2, int value3) {
+        int color = color(value1, value2, value3, colorMaxA);
+        if (record != null) {
+            record.fill(color);
+        } else {
+            fillImpl(color);
+        }
+    }
+    
+    protected void fillImpl(int color) {
         fill = true;
-        fillColor.setColor(color(value1, value2, value3, colorMaxA));
+        fillColor = color;
     }
     
     public void noFill() {
+        if (record != null) {
+            record.noFill();
+        } else {
+            noFillImpl();
+        }
+    }
+    
+    protected void noFillImpl() {
         fill = false;
     }
     
@@ -977,13 +2375,34 @@ public class PCanvas extends SurfaceView implements
         if (textFont == null) {
             throw new RuntimeException("The current font has not yet been set with textFont()");
         }
-        //// for system fonts, set fillcolor
-        bufferg.setColor(fillColor);
         //// check for embedded new-line characters
         if (data.indexOf('\n') >= 0) {
             text(data, x, y - textFont.baseline, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        } else if (record != null) {
+            record.text(data, x, y, textFont, textAlign);
         } else {
-            textFont.draw(bufferg, data, x, y, textAlign);
+            textImpl(data, x, y, textFont, textAlign);
+        }
+    }
+    
+    protected void textImpl(String data, int x, int y, PFont font, int align) {
+        if (transformed && !nativeTransform) {
+            //// the software renderer draws text upright and unscaled, at the transformed position
+            transformed = false;
+            textImpl(data, mapX(x, y), mapY(x, y), font, align);
+            transformed = true;
+            return;
+        }
+        int width = font.stringWidth(data);
+        int left = x;
+        if (align == PMIDlet.CENTER) {
+            left -= width >> 1;
+        } else if (align == PMIDlet.RIGHT) {
+            left -= width;
+        }
+        //// generous vertical bounds, glyphs are drawn relative to the baseline differently per font type
+        if (visible(left - 1, y - font.baseline - font.height, left + width + 1, y + font.height, true)) {
+            bufferg.text(font, data, x, y, align);
         }
     }
     
@@ -998,31 +2417,46 @@ public class PCanvas extends SurfaceView implements
         if (textFont == null) {
             throw new RuntimeException("The current font has not yet been set with textFont()");
         }
-        //// for system fonts, set fillcolor
-        bufferg.setColor(fillColor);
+        if (record != null) {
+            record.text(data, x, y, width, height, textFont, textAlign, textLeading);
+        } else {
+            textImpl(data, x, y, width, height, textFont, textAlign, textLeading);
+        }
+    }
+    
+    protected void textImpl(String[] data, int x, int y, int width, int height, PFont font, int align, int leading) {
+        if (transformed && !nativeTransform) {
+            transformed = false;
+            textImpl(data, mapX(x, y), mapY(x, y), width, height, font, align, leading);
+            transformed = true;
+            return;
+        }
+        if (!visible(x, y, x + width, y + height, true)) {
+            return;
+        }
         //// save current clip and apply clip to bounding area
-        pushMatrix();
-        clip(x, y, width, height);
+        pushMatrixImpl();
+        clipImpl(x, y, width, height);
         //// adjust starting baseline so that text is _contained_ within the bounds
         int textX = x;
-        y += textFont.baseline;
+        y += font.baseline;
         String line;
         for (int i = 0, length = data.length; i < length; i++) {
             line = data[i];
             //// calculate alignment within bounds
-            switch (textAlign) {
+            switch (align) {
                 case PMIDlet.CENTER:
-                    textX = x + ((width - textWidth(line)) >> 1);
+                    textX = x + ((width - font.stringWidth(line)) >> 1);
                     break;
                 case PMIDlet.RIGHT:
-                    textX = x + width - textWidth(line);
+                    textX = x + width - font.stringWidth(line);
                     break;
             }
-            textFont.draw(bufferg, line, textX, y, PMIDlet.LEFT);
-            y += textLeading;
+            bufferg.text(font, line, textX, y, PMIDlet.LEFT);
+            y += leading;
         }
         //// restore clip
-        popMatrix();
+        popMatrixImpl();
     }
     
     public String[] textWrap(String data, int width, int height) {
@@ -1126,11 +2560,10 @@ public class PCanvas extends SurfaceView implements
     }
 
 	/**
-	 * Standard window-focus override. Notice focus lost so we can pause on
-	 * focus lost. e.g. user switches to take a call.
+	 * Called by the surface when its window gains or loses focus, so that
+	 * presenting can pause e.g. while the user takes a call.
 	 */
-	@Override
-	public void onWindowFocusChanged(boolean hasWindowFocus) {
+	protected void windowFocusChanged(boolean hasWindowFocus) {
 		Log.d(tag, "onWindowFocusChanged");
 		if (hasWindowFocus) {
 	        if (suspended) {
@@ -1144,31 +2577,22 @@ public class PCanvas extends SurfaceView implements
 	}
 
 	/* Callback invoked when the surface dimensions change. */
-	public void surfaceChanged(SurfaceHolder holder, int format, int width,
-			int height) {
+	protected void surfaceChanged(int width, int height) {
 		//Log.d(tag, "surfaceChanged");
 
-		//pause drawing
-		thread.pause(true);
-
-		//update widths and heights
-		this.width = width;
-        this.height = height;
-        
-        buffer = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-        bufferg = new Canvas(buffer);   
-        
-        background(200);
-        
-        //unpause drawing
-        thread.pause(false);
+		//the sketch thread reallocates its buffers before its next frame
+		requestedWidth = width;
+		requestedHeight = height;
+		midlet.redraw();
+		//repaint the new surface with the last frame until the next one arrives
+		thread.repaint();
 	}
 
 	/*
 	 * Callback invoked when the Surface has been created and is ready to be
 	 * used.
 	 */
-	public void surfaceCreated(SurfaceHolder holder) {
+	protected void surfaceCreated() {
 		//Log.d(tag, "surfaceCreated");
 		// start the thread here so that we don't busy-wait in run()
 		// waiting for the surface to be created
@@ -1180,7 +2604,7 @@ public class PCanvas extends SurfaceView implements
 	 * be touched. WARNING: after this method returns, the Surface/Canvas must
 	 * never be touched again!
 	 */
-	public void surfaceDestroyed(SurfaceHolder holder) {
+	protected void surfaceDestroyed() {
 		// we have to tell thread to shut down & wait for it to finish, or else
 		// it might touch the Surface after we return and explode
 		boolean retry = true;
@@ -1207,35 +2631,96 @@ public class PCanvas extends SurfaceView implements
 
 		// handle to the surface manager object we interact with
 		private SurfaceHolder surfaceHolder;
+		
+		// guards paused, run and signaled, notified when any of them change
+		private final Object signal = new Object();
+		
+		// set when there is something new to present
+		private boolean signaled = false;
+		
+		// swap chain and frame currently owned by this thread
+		private SwapChain presented;
+		private int front;
+		private boolean hasFrame;
+		
+		// region of the surface out of date with the front frame
+		private Rect region = new Rect();
+		
+		// set when the whole surface must be repainted
+		private boolean repaint = true;
 
-		public UpdaterThread(SurfaceHolder surfaceHolder, Handler handler) {
+		public UpdaterThread(SurfaceHolder surfaceHolder) {
 			Log.d(tag, "New updater thread");
 			// get handles to some important objects
 			this.surfaceHolder = surfaceHolder;
-			this.handler = handler;
+			// created here rather than in PCanvas, which must load without Android
+			this.handler = new Handler() {
+				@Override
+				public void handleMessage(Message m) {
+					Log.d(tag, "Message: " + m.getData());
+					//if (textView != null) {
+					//	textView.setVisibility(m.getData().getInt("viz"));
+					//	textView.setText(m.getData().getString("text"));
+					//}
+				}
+			};
 		}
 		
 		@Override
 		public void run() {
-			while (run) {
-				if (paused) {
-					try {
-						//sleep for 1/4 second
-						Thread.sleep(250);
-					} catch (InterruptedException e) {
+			boolean full;
+			while (true) {
+				//block until the sketch completes a frame or the surface needs repainting
+				synchronized (signal) {
+					while (run && (paused || !signaled)) {
+						try {
+							signal.wait();
+						} catch (InterruptedException e) {
+						}
+					}
+					if (!run) {
+						break;
+					}
+					signaled = false;
+					full = repaint;
+					repaint = false;
+				}
+				SwapChain chain = swapChain;
+				if (chain != presented) {
+					//buffers were reallocated, wait for a frame from the new chain
+					//and hand the old frames, which the sketch thread has left, to the pool
+					if (presented != null) {
+						presented.release();
 					}
+					presented = chain;
+					front = SwapChain.FIRST_FRONT;
+					hasFrame = false;
+					region.setEmpty();
+				}
+				if (chain.ready()) {
+					front = chain.swapFront(front);
+					hasFrame = true;
+					region.union(chain.changed[front]);
+				}
+				if (!hasFrame) {
+					continue;
+				}
+				if (full) {
+					region.set(0, 0, chain.frames[front].getWidth(), chain.frames[front].getHeight());
+				}
+				if (region.isEmpty()) {
+					//nothing changed since the last present
 					continue;
 				}
 				Canvas c = null;
 				try {
-					c = surfaceHolder.lockCanvas(null);
+					//the surface keeps its contents outside the locked region
+					c = surfaceHolder.lockCanvas(region);
 					synchronized (surfaceHolder) {
-						if (buffer != null) {
-							// draw the image. operations on the Canvas accumulate
-							// so this is like clearing the screen.
-							c.drawBitmap(buffer, 0, 0, null);
-						}
+						// copy only the changed region, lockCanvas may have grown it
+						c.drawBitmap(chain.frames[front], region, region, null);
 					}
+					region.setEmpty();
 				} finally {
 					// do this in a finally so that if an exception is thrown
 					// during the above, we don't leave the Surface in an
@@ -1244,17 +2729,245 @@ public class PCanvas extends SurfaceView implements
 						surfaceHolder.unlockCanvasAndPost(c);
 					}
 				}
+				//count the frame only once it has been posted to the surface
+				presentedFrames++;
 			}
 		}	
 		
+		public void frameReady() {
+			synchronized (signal) {
+				signaled = true;
+				signal.notify();
+			}
+		}
+		
+		public void repaint() {
+			synchronized (signal) {
+				repaint = true;
+				signaled = true;
+				signal.notify();
+			}
+		}
+		
 		public void pause(boolean pause) {
-			paused = pause;
+			synchronized (signal) {
+				paused = pause;
+				//repaint the last frame when drawing resumes
+				if (!pause) {
+					repaint = true;
+					signaled = true;
+				}
+				signal.notify();
+			}
 		}
 		
 		public void shutdown() {
-			run = false;
+			synchronized (signal) {
+				run = false;
+				signal.notify();
+			}
 		}
 		
 	}	
     
+	/**
+	 * Draws the frames recorded in threaded retained mode, one at a time.
+	 */
+	private class RenderThread extends Thread {
+		
+		// guards list, run and failure, notified when any of them change
+		private final Object signal = new Object();
+		
+		// list being drawn, null when idle
+		private PDisplayList list;
+		
+		private boolean run = true;
+		
+		// exception that stopped drawing, rethrown to the sketch thread
+		private RuntimeException failure;
+		
+		public RenderThread() {
+			super("PCanvas render");
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			PDisplayList next;
+			while (true) {
+				synchronized (signal) {
+					while (run && (list == null)) {
+						try {
+							signal.wait();
+						} catch (InterruptedException e) {
+						}
+					}
+					if (list == null) {
+						break;
+					}
+					next = list;
+				}
+				try {
+					render(next);
+				} catch (RuntimeException e) {
+					Log.e(tag, "Error drawing recorded frame", e);
+					synchronized (signal) {
+						failure = e;
+						run = false;
+					}
+				}
+				synchronized (signal) {
+					list = null;
+					signal.notifyAll();
+				}
+			}
+		}
+		
+		/**
+		 * Waits for the previous list to be drawn, then hands over the next.
+		 */
+		public void submit(PDisplayList next) {
+			synchronized (signal) {
+				while ((list != null) && (failure == null)) {
+					try {
+						signal.wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				if (failure != null) {
+					throw new PException(failure);
+				}
+				list = next;
+				signal.notifyAll();
+			}
+		}
+		
+		/**
+		 * Stops the thread once the list it holds has been drawn.
+		 */
+		public void finish() {
+			synchronized (signal) {
+				run = false;
+				signal.notifyAll();
+			}
+			boolean retry = true;
+			while (retry) {
+				try {
+					join();
+					retry = false;
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * Three frame bitmaps shared by the sketch thread and the updater thread.
+	 * At any time one frame is the sketch's back buffer, one is the updater's
+	 * front buffer and one is pending between them. Each side trades its
+	 * frame for the pending one with a single atomic exchange, so a handoff
+	 * never blocks and never allocates, and the updater only ever sees
+	 * completed frames.
+	 */
+	private static class SwapChain {
+		
+		public static final int FRAME_COUNT = 3;
+		public static final int FIRST_FRONT = 2;
+		
+		// set on the pending slot when it holds a frame the updater has not seen
+		private static final int READY = 0x100;
+		private static final int INDEX = 0xff;
+		
+		public final Bitmap[] frames;
+		public final PRenderer[] framesg;
+		
+		// PMIDlet.ANDROID or PMIDlet.P2D
+		public final int renderer;
+		// PMIDlet.RGB_565 or PMIDlet.ARGB_8888
+		public final int format;
+		public final boolean dither;
+		
+		// per frame, the region that differs from the newest published frame
+		public final Rect[] stale;
+		// per frame, the region of the surface to repaint when it is presented
+		public final Rect[] changed;
+		
+		// back buffer index, only touched by the thread drawing frames
+		public int back;
+		
+		private final AtomicInteger pending;
+		
+		public SwapChain(int width, int height, int renderer, int format, boolean dither) {
+			this.renderer = renderer;
+			this.format = format;
+			this.dither = dither;
+			Config config = (format == PMIDlet.RGB_565) ? Config.RGB_565 : Config.ARGB_8888;
+			frames = new Bitmap[FRAME_COUNT];
+			framesg = new PRenderer[FRAME_COUNT];
+			stale = new Rect[FRAME_COUNT];
+			changed = new Rect[FRAME_COUNT];
+			for (int i = 0; i < FRAME_COUNT; i++) {
+				frames[i] = PPool.bitmap(width, height, config);
+				if (renderer == PMIDlet.P2D) {
+					framesg[i] = new PSoftwareRenderer(frames[i]);
+				} else {
+					framesg[i] = new PCanvasRenderer(frames[i]);
+				}
+				framesg[i].setDither(dither);
+				stale[i] = new Rect(0, 0, width, height);
+				changed[i] = new Rect(0, 0, width, height);
+			}
+			back = 0;
+			stale[back].setEmpty();
+			pending = new AtomicInteger(1);
+		}
+		
+		/**
+		 * Returns the frames to the pool once neither thread uses them.
+		 */
+		public void release() {
+			for (int i = 0; i < FRAME_COUNT; i++) {
+				if (framesg[i] instanceof PSoftwareRenderer) {
+					PPool.recycle(((PSoftwareRenderer) framesg[i]).pixels);
+				}
+				PPool.recycle(frames[i]);
+			}
+		}
+		
+		public boolean ready() {
+			return (pending.get() & READY) != 0;
+		}
+		
+		/**
+		 * Called by the sketch thread with its finished back buffer and the
+		 * region it changed, returns the frame to draw next.
+		 */
+		public int swapBack(int frame, int left, int top, int right, int bottom) {
+			Rect rect = changed[frame];
+			rect.set(left, top, right, bottom);
+			int waiting = pending.get();
+			if ((waiting & READY) != 0) {
+				//the pending frame may be replaced before it is shown, so repaint its region too
+				rect.union(changed[waiting & INDEX]);
+			}
+			if (left < right) {
+				for (int i = 0; i < FRAME_COUNT; i++) {
+					if (i != frame) {
+						stale[i].union(left, top, right, bottom);
+					}
+				}
+			}
+			return pending.getAndSet(frame | READY) & INDEX;
+		}
+		
+		/**
+		 * Called by the updater thread with the frame it last presented,
+		 * returns the newest completed frame.
+		 */
+		public int swapFront(int frame) {
+			return pending.getAndSet(frame) & INDEX;
+		}
+	}
+	
 }
@@ -0,0 +1,275 @@
+package processing.core;
+
+/**
+ * Android port of the Mobile Processing project - http://mobile.processing.org
+ *
+ * The author of Mobile Processing is Francis Li (mail@francisli.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Paint.Cap;
+import android.graphics.Paint.Join;
+import android.graphics.Paint.Style;
+
+/**
+ * Renders a frame with android.graphics.Canvas.
+ */
+public class PCanvasRenderer implements PRenderer {
+
+    protected final Bitmap  frame;
+    protected final Canvas  g;
+
+    //// transform applied over the saved state, which keeps the clip in frame coordinates
+    protected Matrix        transform;
+    protected float[]       values;
+    protected int           clipLeft;
+    protected int           clipTop;
+    protected int           clipRight;
+    protected int           clipBottom;
+
+    //// paints keep their color between calls, so it is only set when it changes
+    protected Paint         fillPaint;
+    protected Paint         strokePaint;
+    protected Paint         spanPaint;
+
+    protected Path          path;
+    protected RectF         oval;
+    protected Rect          region;
+    protected float[]       scratch;
+
+    public PCanvasRenderer(Bitmap frame) {
+        this.frame = frame;
+        g = new Canvas(frame);
+        //// clip and transform live above this level so they can be replaced
+        g.save();
+        transform = new Matrix();
+        values = new float[9];
+        values[8] = 1f;
+        clipRight = frame.getWidth();
+        clipBottom = frame.getHeight();
+
+        fillPaint = new Paint();
+        fillPaint.setStyle(Style.FILL);
+        strokePaint = new Paint();
+        strokePaint.setStrokeWidth(1f);
+        spanPaint = new Paint();
+        path = new Path();
+        oval = new RectF();
+        region = new Rect();
+        scratch = new float[64];
+    }
+
+    public int getWidth() {
+        return frame.getWidth();
+    }
+
+    public int getHeight() {
+        return frame.getHeight();
+    }
+
+    public void setTranslate(int x, int y) {
+        transform.setTranslate(x, y);
+        g.setMatrix(transform);
+    }
+
+    public boolean transforms() {
+        return true;
+    }
+
+    public void setTransform(int m00, int m01, int m02, int m10, int m11, int m12) {
+        float[] values = this.values;
+        values[0] = m00 / 65536f;
+        values[1] = m01 / 65536f;
+        values[2] = m02 / 65536f;
+        values[3] = m10 / 65536f;
+        values[4] = m11 / 65536f;
+        values[5] = m12 / 65536f;
+        transform.setValues(values);
+        g.setMatrix(transform);
+    }
+
+    public void setClip(int left, int top, int right, int bottom) {
+        clipLeft = left;
+        clipTop = top;
+        clipRight = right;
+        clipBottom = bottom;
+        //// a Canvas clip can only shrink, so start over from the saved state
+        g.restoreToCount(1);
+        g.save();
+        g.clipRect(left, top, right, bottom);
+        //// the clip stays in frame coordinates when the matrix is replaced
+        g.setMatrix(transform);
+    }
+
+    public void setStrokeStyle(int weight, int cap, int join) {
+        strokePaint.setStrokeWidth(weight * 1.0f);
+        //// hairlines keep butt ends so that 1 pixel lines end exactly on their endpoints
+        if (weight <= 1) {
+            strokePaint.setStrokeCap(Cap.BUTT);
+        } else if (cap == PMIDlet.ROUND) {
+            strokePaint.setStrokeCap(Cap.ROUND);
+        } else if (cap == PMIDlet.PROJECT) {
+            strokePaint.setStrokeCap(Cap.SQUARE);
+        } else {
+            strokePaint.setStrokeCap(Cap.BUTT);
+        }
+        if (join == PMIDlet.ROUND) {
+            strokePaint.setStrokeJoin(Join.ROUND);
+        } else if (join == PMIDlet.BEVEL) {
+            strokePaint.setStrokeJoin(Join.BEVEL);
+        } else {
+            strokePaint.setStrokeJoin(Join.MITER);
+        }
+    }
+
+    public void setDither(boolean dither) {
+        fillPaint.setDither(dither);
+        strokePaint.setDither(dither);
+        spanPaint.setDither(dither);
+    }
+
+    public boolean wideStrokes() {
+        return true;
+    }
+
+    public void background(int color) {
+        g.drawColor(color);
+    }
+
+    public void point(int x, int y, int color) {
+        g.drawPoint(x, y, stroke(color, Style.FILL));
+    }
+
+    public void points(int[] xy, int offset, int count, int color) {
+        int length = count << 1;
+        g.drawPoints(floats(xy, offset, length), 0, length, stroke(color, Style.FILL));
+    }
+
+    public void line(int x1, int y1, int x2, int y2, int color) {
+        g.drawLine(x1, y1, x2, y2, stroke(color, Style.FILL));
+    }
+
+    public void lines(int[] xy, int offset, int count, int color) {
+        int length = count << 2;
+        g.drawLines(floats(xy, offset, length), 0, length, stroke(color, Style.FILL));
+    }
+
+    public void polyline(int[] xy, int startIndex, int endIndex, boolean closed, int color) {
+        path.rewind();
+        path.moveTo(xy[startIndex], xy[startIndex + 1]);
+        for (int i = startIndex + 2; i <= endIndex; i += 2) {
+            path.lineTo(xy[i], xy[i + 1]);
+        }
+        if (closed) {
+            path.close();
+        }
+        g.drawPath(path, stroke(color, Style.STROKE));
+    }
+
+    public void span(int x1, int x2, int y, int color) {
+        if (spanPaint.getColor() != color) {
+            spanPaint.setColor(color);
+        }
+        g.drawLine(x1, y, x2, y, spanPaint);
+    }
+
+    public void fillRect(int x, int y, int width, int height, int color) {
+        g.drawRect(x, y, x + width, y + height, fill(color));
+    }
+
+    public void strokeRect(int x, int y, int width, int height, int color) {
+        g.drawRect(x, y, x + width, y + height, stroke(color, Style.STROKE));
+    }
+
+    public void fillEllipse(int x, int y, int width, int height, int color) {
+        oval.set(x, y, x + width, y + height);
+        g.drawOval(oval, fill(color));
+    }
+
+    public void strokeEllipse(int x, int y, int width, int height, int color) {
+        oval.set(x, y, x + width, y + height);
+        g.drawOval(oval, stroke(color, Style.STROKE));
+    }
+
+    public void image(PImage img, int x, int y) {
+        img.draw(g, x, y);
+    }
+
+    public void text(PFont font, String str, int x, int y, int align) {
+        font.draw(g, str, x, y, align);
+    }
+
+    public void copy(PRenderer source, int left, int top, int right, int bottom) {
+        region.set(left, top, right, bottom);
+        g.restoreToCount(1);
+        if (source instanceof PCanvasRenderer) {
+            g.drawBitmap(((PCanvasRenderer) source).frame, region, region, null);
+        } else {
+            int width = right - left;
+            int[] pixels = new int[width * (bottom - top)];
+            source.getPixels(pixels, 0, width, left, top, width, bottom - top);
+            frame.setPixels(pixels, 0, width, left, top, width, bottom - top);
+        }
+        g.save();
+        setClip(clipLeft, clipTop, clipRight, clipBottom);
+    }
+
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        frame.getPixels(pixels, offset, stride, x, y, width, height);
+    }
+
+    public void flush() {
+        //// the canvas draws straight into the frame bitmap
+    }
+
+    private Paint fill(int color) {
+        if (fillPaint.getColor() != color) {
+            fillPaint.setColor(color);
+        }
+        return fillPaint;
+    }
+
+    private Paint stroke(int color, Style style) {
+        if (strokePaint.getColor() != color) {
+            strokePaint.setColor(color);
+        }
+        if (strokePaint.getStyle() != style) {
+            strokePaint.setStyle(style);
+        }
+        return strokePaint;
+    }
+
+    private float[] floats(int[] values, int offset, int length) {
+        if (scratch.length < length) {
+            scratch = new float[Math.max(length, scratch.length * 2)];
+        }
+        float[] scratch = this.scratch;
+        for (int i = 0; i < length; i++) {
+            scratch[i] = values[offset + i];
+        }
+        return scratch;
+    }
+}
@@ -0,0 +1,552 @@
+package processing.core;
+
+/**
+ * Android port of the Mobile Processing project - http://mobile.processing.org
+ *
+ * The author of Mobile Processing is Francis Li (mail@francisli.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+
+/**
+ * Drawing commands of one frame recorded by PCanvas in retained mode. Each
+ * command is an opcode followed by its int arguments in a single int array;
+ * strings, fonts and images are kept in a separate reference table and
+ * addressed by index. A list starts with the drawing state it was recorded
+ * with, so two lists with equal contents produce the same frame.
+ */
+public class PDisplayList {
+
+    private static final int OP_STATE           = 0;
+    private static final int OP_POINT           = 1;
+    private static final int OP_LINE            = 2;
+    private static final int OP_RECT            = 3;
+    private static final int OP_ELLIPSE         = 4;
+    private static final int OP_SHAPE           = 5;
+    private static final int OP_FILL            = 6;
+    private static final int OP_NO_FILL         = 7;
+    private static final int OP_STROKE          = 8;
+    private static final int OP_NO_STROKE       = 9;
+    private static final int OP_STROKE_WEIGHT   = 10;
+    private static final int OP_STROKE_CAP      = 11;
+    private static final int OP_STROKE_JOIN     = 12;
+    private static final int OP_TRANSLATE       = 13;
+    private static final int OP_CLIP            = 14;
+    private static final int OP_PUSH_MATRIX     = 15;
+    private static final int OP_POP_MATRIX      = 16;
+    private static final int OP_RESET_MATRIX    = 17;
+    private static final int OP_BACKGROUND      = 18;
+    private static final int OP_IMAGE           = 19;
+    private static final int OP_IMAGE_REGION    = 20;
+    private static final int OP_TEXT            = 21;
+    private static final int OP_TEXT_LINES      = 22;
+    private static final int OP_TRANSFORM       = 23;
+    private static final int OP_RECTS           = 24;
+    private static final int OP_IMAGES          = 25;
+
+    protected int[]         ops;
+    protected int           opCount;
+    protected Object[]      refs;
+    protected int           refCount;
+
+    //// drawing state at the end of the recorded commands
+    protected boolean       fill;
+    protected int           fillColor;
+    protected boolean       stroke;
+    protected int           strokeColor;
+    protected int           strokeWidth;
+    protected int           strokeCap;
+    protected int           strokeJoin;
+
+    //// true while nothing but state changes have been recorded
+    protected boolean       empty;
+    //// true once a clip has been recorded
+    protected boolean       clipped;
+    //// true if the frame starts by covering the whole surface with an opaque color
+    protected boolean       cleared;
+
+    public PDisplayList() {
+        ops = new int[256];
+        refs = new Object[16];
+    }
+
+    /**
+     * Sets the drawing state the next recorded frame starts with.
+     */
+    public void state(boolean fill, int fillColor, boolean stroke, int strokeColor, int strokeWidth, int strokeCap, int strokeJoin) {
+        this.fill = fill;
+        this.fillColor = fillColor;
+        this.stroke = stroke;
+        this.strokeColor = strokeColor;
+        this.strokeWidth = strokeWidth;
+        this.strokeCap = strokeCap;
+        this.strokeJoin = strokeJoin;
+    }
+
+    /**
+     * Empties the list and starts a new frame with the drawing state the
+     * given list ended with.
+     */
+    public void clear(PDisplayList last) {
+        if (last != this) {
+            state(last.fill, last.fillColor, last.stroke, last.strokeColor, last.strokeWidth, last.strokeCap, last.strokeJoin);
+        }
+        //// release references so recorded images and strings can be collected
+        for (int i = 0; i < refCount; i++) {
+            refs[i] = null;
+        }
+        opCount = 0;
+        refCount = 0;
+        empty = true;
+        clipped = false;
+        cleared = false;
+
+        ensure(8);
+        ops[opCount++] = OP_STATE;
+        ops[opCount++] = fill ? 1 : 0;
+        ops[opCount++] = fillColor;
+        ops[opCount++] = stroke ? 1 : 0;
+        ops[opCount++] = strokeColor;
+        ops[opCount++] = strokeWidth;
+        ops[opCount++] = strokeCap;
+        ops[opCount++] = strokeJoin;
+    }
+
+    /**
+     * Returns the number of ints used by the recorded commands.
+     */
+    public int size() {
+        return opCount;
+    }
+
+    /**
+     * Returns true if the frame starts by painting the whole surface with an
+     * opaque background, so that replaying it gives the same pixels
+     * regardless of what the previous frame left behind.
+     */
+    public boolean repeatable() {
+        return cleared;
+    }
+
+    /**
+     * Returns true if replaying this list draws exactly the same frame as
+     * replaying the other one. Images are compared by identity and mutable
+     * images never match, since their pixels may have changed in between.
+     */
+    public boolean matches(PDisplayList other) {
+        if ((other == null) || (opCount != other.opCount) || (refCount != other.refCount)) {
+            return false;
+        }
+        int[] ops = this.ops;
+        int[] otherOps = other.ops;
+        for (int i = opCount - 1; i >= 0; i--) {
+            if (ops[i] != otherOps[i]) {
+                return false;
+            }
+        }
+        Object ref, otherRef;
+        for (int i = 0; i < refCount; i++) {
+            ref = refs[i];
+            otherRef = other.refs[i];
+            if (ref instanceof String) {
+                if (!ref.equals(otherRef)) {
+                    return false;
+                }
+            } else if (ref instanceof String[]) {
+                if (!(otherRef instanceof String[]) || !equals((String[]) ref, (String[]) otherRef)) {
+                    return false;
+                }
+            } else if (ref != otherRef) {
+                return false;
+            } else if ((ref instanceof PImage) && ((PImage) ref).mutable) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(String[] a, String[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = a.length - 1; i >= 0; i--) {
+            if (!a[i].equals(b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Executes the recorded commands on the canvas.
+     */
+    public void replay(PCanvas canvas) {
+        int[] ops = this.ops;
+        Object[] refs = this.refs;
+        int i = 0;
+        while (i < opCount) {
+            switch (ops[i]) {
+                case OP_STATE:
+                    canvas.fillImpl(ops[i + 2]);
+                    if (ops[i + 1] == 0) {
+                        canvas.noFillImpl();
+                    }
+                    canvas.strokeImpl(ops[i + 4]);
+                    if (ops[i + 3] == 0) {
+                        canvas.noStrokeImpl();
+                    }
+                    canvas.strokeWeightImpl(ops[i + 5]);
+                    canvas.strokeCapImpl(ops[i + 6]);
+                    canvas.strokeJoinImpl(ops[i + 7]);
+                    i += 8;
+                    break;
+                case OP_POINT:
+                    canvas.pointImpl(ops[i + 1], ops[i + 2]);
+                    i += 3;
+                    break;
+                case OP_LINE:
+                    canvas.lineImpl(ops[i + 1], ops[i + 2], ops[i + 3], ops[i + 4]);
+                    i += 5;
+                    break;
+                case OP_RECT:
+                    canvas.rectImpl(ops[i + 1], ops[i + 2], ops[i + 3], ops[i + 4]);
+                    i += 5;
+                    break;
+                case OP_RECTS:
+                    canvas.rectsImpl(ops, i + 2, ops[i + 1]);
+                    i += 2 + (ops[i + 1] << 2);
+                    break;
+                case OP_ELLIPSE:
+                    canvas.ellipseImpl(ops[i + 1], ops[i + 2], ops[i + 3], ops[i + 4]);
+                    i += 5;
+                    break;
+                case OP_SHAPE:
+                    canvas.shapeImpl(ops[i + 1], ops, i + 3, ops[i + 2]);
+                    i += 3 + ops[i + 2];
+                    break;
+                case OP_FILL:
+                    canvas.fillImpl(ops[i + 1]);
+                    i += 2;
+                    break;
+                case OP_NO_FILL:
+                    canvas.noFillImpl();
+                    i++;
+                    break;
+                case OP_STROKE:
+                    canvas.strokeImpl(ops[i + 1]);
+                    i += 2;
+                    break;
+                case OP_NO_STROKE:
+                    canvas.noStrokeImpl();
+                    i++;
+                    break;
+                case OP_STROKE_WEIGHT:
+                    canvas.strokeWeightImpl(ops[i + 1]);
+                    i += 2;
+                    break;
+                case OP_STROKE_CAP:
+                    canvas.strokeCapImpl(ops[i + 1]);
+                    i += 2;
+                    break;
+                case OP_STROKE_JOIN:
+                    canvas.strokeJoinImpl(ops[i + 1]);
+                    i += 2;
+                    break;
+                case OP_TRANSLATE:
+                    canvas.translateImpl(ops[i + 1], ops[i + 2]);
+                    i += 3;
+                    break;
+                case OP_TRANSFORM:
+                    canvas.transformImpl(ops[i + 1], ops[i + 2], ops[i + 3], ops[i + 4], ops[i + 5], ops[i + 6]);
+                    i += 7;
+                    break;
+                case OP_CLIP:
+                    canvas.clipImpl(ops[i + 1], ops[i + 2], ops[i + 3], ops[i + 4]);
+                    i += 5;
+                    break;
+                case OP_PUSH_MATRIX:
+                    canvas.pushMatrixImpl();
+                    i++;
+                    break;
+                case OP_POP_MATRIX:
+                    canvas.popMatrixImpl();
+                    i++;
+                    break;
+                case OP_RESET_MATRIX:
+                    canvas.resetMatrixImpl();
+                    i++;
+                    break;
+                case OP_BACKGROUND:
+                    canvas.backgroundImpl(ops[i + 1]);
+                    i += 2;
+                    break;
+                case OP_IMAGE:
+                    canvas.imageImpl((PImage) refs[ops[i + 1]], ops[i + 2], ops[i + 3]);
+                    i += 4;
+                    break;
+                case OP_IMAGE_REGION:
+                    canvas.imageImpl((PImage) refs[ops[i + 1]], ops[i + 2], ops[i + 3], ops[i + 4], ops[i + 5], ops[i + 6], ops[i + 7]);
+                    i += 8;
+                    break;
+                case OP_IMAGES:
+                    for (int j = i + 2, end = j + ops[i + 1] * 3; j < end; j += 3) {
+                        canvas.imageImpl((PImage) refs[ops[j]], ops[j + 1], ops[j + 2]);
+                    }
+                    i += 2 + ops[i + 1] * 3;
+                    break;
+                case OP_TEXT:
+                    canvas.textImpl((String) refs[ops[i + 1]], ops[i + 2], ops[i + 3], (PFont) refs[ops[i + 4]], ops[i + 5]);
+                    i += 6;
+                    break;
+                case OP_TEXT_LINES:
+                    canvas.textImpl((String[]) refs[ops[i + 1]], ops[i + 2], ops[i + 3], ops[i + 4], ops[i + 5],
+                                    (PFont) refs[ops[i + 6]], ops[i + 7], ops[i + 8]);
+                    i += 9;
+                    break;
+                default:
+                    throw new RuntimeException("Corrupt display list, unknown opcode " + ops[i] + " at " + i);
+            }
+        }
+    }
+
+    public void point(int x, int y) {
+        draw(3);
+        ops[opCount++] = OP_POINT;
+        ops[opCount++] = x;
+        ops[opCount++] = y;
+    }
+
+    public void line(int x1, int y1, int x2, int y2) {
+        draw(5);
+        ops[opCount++] = OP_LINE;
+        ops[opCount++] = x1;
+        ops[opCount++] = y1;
+        ops[opCount++] = x2;
+        ops[opCount++] = y2;
+    }
+
+    public void rect(int x, int y, int width, int height) {
+        op4(OP_RECT, x, y, width, height);
+    }
+
+    public void rects(int[] xywh, int offset, int count) {
+        int length = count << 2;
+        draw(2 + length);
+        ops[opCount++] = OP_RECTS;
+        ops[opCount++] = count;
+        System.arraycopy(xywh, offset, ops, opCount, length);
+        opCount += length;
+    }
+
+    public void ellipse(int x, int y, int width, int height) {
+        op4(OP_ELLIPSE, x, y, width, height);
+    }
+
+    public void shape(int mode, int[] points, int offset, int length) {
+        draw(3 + length);
+        ops[opCount++] = OP_SHAPE;
+        ops[opCount++] = mode;
+        ops[opCount++] = length;
+        System.arraycopy(points, offset, ops, opCount, length);
+        opCount += length;
+    }
+
+    public void fill(int color) {
+        fill = true;
+        fillColor = color;
+        op1(OP_FILL, color);
+    }
+
+    public void noFill() {
+        fill = false;
+        op0(OP_NO_FILL);
+    }
+
+    public void stroke(int color) {
+        stroke = true;
+        strokeColor = color;
+        op1(OP_STROKE, color);
+    }
+
+    public void noStroke() {
+        stroke = false;
+        op0(OP_NO_STROKE);
+    }
+
+    public void strokeWeight(int width) {
+        strokeWidth = width;
+        op1(OP_STROKE_WEIGHT, width);
+    }
+
+    public void strokeCap(int cap) {
+        strokeCap = cap;
+        op1(OP_STROKE_CAP, cap);
+    }
+
+    public void strokeJoin(int join) {
+        strokeJoin = join;
+        op1(OP_STROKE_JOIN, join);
+    }
+
+    public void translate(int x, int y) {
+        ensure(3);
+        ops[opCount++] = OP_TRANSLATE;
+        ops[opCount++] = x;
+        ops[opCount++] = y;
+    }
+
+    public void transform(int m00, int m01, int m02, int m10, int m11, int m12) {
+        ensure(7);
+        ops[opCount++] = OP_TRANSFORM;
+        ops[opCount++] = m00;
+        ops[opCount++] = m01;
+        ops[opCount++] = m02;
+        ops[opCount++] = m10;
+        ops[opCount++] = m11;
+        ops[opCount++] = m12;
+    }
+
+    public void clip(int x, int y, int width, int height) {
+        clipped = true;
+        ensure(5);
+        ops[opCount++] = OP_CLIP;
+        ops[opCount++] = x;
+        ops[opCount++] = y;
+        ops[opCount++] = width;
+        ops[opCount++] = height;
+    }
+
+    public void pushMatrix() {
+        op0(OP_PUSH_MATRIX);
+    }
+
+    public void popMatrix() {
+        op0(OP_POP_MATRIX);
+    }
+
+    public void resetMatrix() {
+        op0(OP_RESET_MATRIX);
+    }
+
+    public void background(int color) {
+        if (empty && !clipped && ((color >>> 24) == 0xff)) {
+            cleared = true;
+        }
+        draw(2);
+        ops[opCount++] = OP_BACKGROUND;
+        ops[opCount++] = color;
+    }
+
+    public void image(PImage img, int x, int y) {
+        draw(4);
+        ops[opCount++] = OP_IMAGE;
+        ops[opCount++] = ref(img);
+        ops[opCount++] = x;
+        ops[opCount++] = y;
+    }
+
+    public void image(PImage img, int sx, int sy, int swidth, int sheight, int dx, int dy) {
+        draw(8);
+        ops[opCount++] = OP_IMAGE_REGION;
+        ops[opCount++] = ref(img);
+        ops[opCount++] = sx;
+        ops[opCount++] = sy;
+        ops[opCount++] = swidth;
+        ops[opCount++] = sheight;
+        ops[opCount++] = dx;
+        ops[opCount++] = dy;
+    }
+
+    public void images(PImage[] images, int[] xy, int count) {
+        draw(2 + count * 3);
+        ops[opCount++] = OP_IMAGES;
+        ops[opCount++] = count;
+        for (int i = 0, j = 0; i < count; i++, j += 2) {
+            ops[opCount++] = ref(images[i]);
+            ops[opCount++] = xy[j];
+            ops[opCount++] = xy[j + 1];
+        }
+    }
+
+    public void text(String data, int x, int y, PFont font, int align) {
+        draw(6);
+        ops[opCount++] = OP_TEXT;
+        ops[opCount++] = ref(data);
+        ops[opCount++] = x;
+        ops[opCount++] = y;
+        ops[opCount++] = ref(font);
+        ops[opCount++] = align;
+    }
+
+    public void text(String[] data, int x, int y, int width, int height, PFont font, int align, int leading) {
+        draw(9);
+        ops[opCount++] = OP_TEXT_LINES;
+        //// the caller may reuse its array for the next frame
+        ops[opCount++] = ref(data.clone());
+        ops[opCount++] = x;
+        ops[opCount++] = y;
+        ops[opCount++] = width;
+        ops[opCount++] = height;
+        ops[opCount++] = ref(font);
+        ops[opCount++] = align;
+        ops[opCount++] = leading;
+    }
+
+    private void op0(int op) {
+        ensure(1);
+        ops[opCount++] = op;
+    }
+
+    private void op1(int op, int value) {
+        ensure(2);
+        ops[opCount++] = op;
+        ops[opCount++] = value;
+    }
+
+    private void op4(int op, int value1, int value2, int value3, int value4) {
+        draw(5);
+        ops[opCount++] = op;
+        ops[opCount++] = value1;
+        ops[opCount++] = value2;
+        ops[opCount++] = value3;
+        ops[opCount++] = value4;
+    }
+
+    private void draw(int length) {
+        empty = false;
+        ensure(length);
+    }
+
+    private void ensure(int length) {
+        if (opCount + length > ops.length) {
+            int[] old = ops;
+            ops = new int[Math.max(old.length * 2, opCount + length)];
+            System.arraycopy(old, 0, ops, 0, opCount);
+        }
+    }
+
+    private int ref(Object value) {
+        if (refCount == refs.length) {
+            Object[] old = refs;
+            refs = new Object[refCount * 2];
+            System.arraycopy(old, 0, refs, 0, refCount);
+        }
+        refs[refCount] = value;
+        return refCount++;
+    }
+}
@@ -0,0 +1,816 @@
+package processing.core;
+
+/**
+ * Android port of the Mobile Processing project - http://mobile.processing.org
+ *
+ * The author of Mobile Processing is Francis Li (mail@francisli.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.Random;
+import java.util.Vector;
+
+import javax.imageio.ImageIO;
+
+import processing.image2.PImage2;
+
+/**
+ * Runs a sketch on a plain Java VM, without Android. The sketch extends this
+ * class instead of PMIDlet and draws with the same calls, through the pure
+ * Java renderer, into a PImage2 held in memory that can be saved as a PNG.
+ * Frames are drawn back to back, as fast as the host allows, so that the
+ * frame rate measured is the throughput of the drawing code. The resources
+ * of the application are read from a directory and the record stores are
+ * stood in for by files in another. Fonts, events and phone features need
+ * Android and are not available.
+ * 
+ * <pre>java processing.core.PHeadless SketchClass [frames] [output.png]</pre>
+ */
+public abstract class PHeadless {
+
+	public static final int CENTER = PMIDlet.CENTER;
+	public static final int CENTER_RADIUS = PMIDlet.CENTER_RADIUS;
+	public static final int CORNER = PMIDlet.CORNER;
+	public static final int CORNERS = PMIDlet.CORNERS;
+
+	public static final int POINTS = PMIDlet.POINTS;
+	public static final int LINES = PMIDlet.LINES;
+	public static final int LINE_STRIP = PMIDlet.LINE_STRIP;
+	public static final int LINE_LOOP = PMIDlet.LINE_LOOP;
+	public static final int TRIANGLES = PMIDlet.TRIANGLES;
+	public static final int TRIANGLE_STRIP = PMIDlet.TRIANGLE_STRIP;
+	public static final int QUADS = PMIDlet.QUADS;
+	public static final int QUAD_STRIP = PMIDlet.QUAD_STRIP;
+	public static final int POLYGON = PMIDlet.POLYGON;
+
+	public static final int SQUARE = PMIDlet.SQUARE;
+	public static final int ROUND = PMIDlet.ROUND;
+	public static final int PROJECT = PMIDlet.PROJECT;
+	public static final int MITER = PMIDlet.MITER;
+	public static final int BEVEL = PMIDlet.BEVEL;
+
+	public static final int RGB = PMIDlet.RGB;
+	public static final int HSB = PMIDlet.HSB;
+
+	public static final int RGB_565 = PMIDlet.RGB_565;
+	public static final int ARGB_8888 = PMIDlet.ARGB_8888;
+	public static final int ALPHA_8 = PMIDlet.ALPHA_8;
+
+	public static final int FP_PRECISION = PMIDlet.FP_PRECISION;
+	public static final int ONE = PMIDlet.ONE;
+	public static final int PI = PMIDlet.PI;
+	public static final int TWO_PI = PMIDlet.TWO_PI;
+	public static final int HALF_PI = PMIDlet.HALF_PI;
+
+	public static final int DEFAULT_WIDTH = 240;
+	public static final int DEFAULT_HEIGHT = 320;
+
+	protected int width;
+	protected int height;
+
+	protected int framerate;
+	protected int frameCount;
+
+	public PCanvas canvas;
+
+	/** The frame being drawn, its pixels are those of the renderer. */
+	public PImage2 frame;
+
+	/** Directory searched for resources before the class path. */
+	protected File resources;
+	/** Directory holding a file for each record store. */
+	protected File storage;
+
+	private boolean running;
+	private boolean redraw;
+	private long startTime;
+	private Random random;
+
+	public PHeadless() {
+		this(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+	}
+
+	public PHeadless(int width, int height) {
+		resources = new File(System.getProperty("processing.resources", "data"));
+		storage = new File(System.getProperty("processing.storage", "storage"));
+		allocate(width, height);
+	}
+
+	private void allocate(int width, int height) {
+		this.width = width;
+		this.height = height;
+		PSoftwareRenderer renderer = new PSoftwareRenderer(width, height);
+		frame = new PImage2(renderer.pixels, width, height);
+		canvas = new PCanvas(renderer);
+	}
+
+	/**
+	 * Calls setup(), then draw() until the given number of frames has been
+	 * drawn or noLoop() stops the sketch, and returns the number of frames
+	 * drawn per second, not counting setup().
+	 */
+	public final float run(int frames) {
+		startTime = System.currentTimeMillis();
+		running = true;
+		redraw = true;
+		canvas.reset();
+		setup();
+		long start = System.nanoTime();
+		long lastFrameTime = start;
+		int drawn = 0;
+		while ((drawn < frames) && (running || redraw)) {
+			canvas.reset();
+			draw();
+			canvas.publish();
+			long currentTime = System.nanoTime();
+			framerate = (int) (1000000000L / Math.max(1, currentTime - lastFrameTime));
+			lastFrameTime = currentTime;
+			frameCount++;
+			drawn++;
+			redraw = false;
+		}
+		//// threaded retained mode may still be drawing the last frame
+		canvas.finish();
+		return drawn * 1000000000f / Math.max(1, lastFrameTime - start);
+	}
+
+	public void setup() {
+	}
+
+	public void draw() {
+	}
+
+	public final void redraw() {
+		redraw = true;
+	}
+
+	public final void loop() {
+		running = true;
+	}
+
+	public final void noLoop() {
+		running = false;
+		// // let at least one draw to occur following this command
+		redraw = true;
+	}
+
+	/**
+	 * Replaces the frame with a blank one of the given size. Call it first
+	 * in setup(), drawing state set before it is lost.
+	 */
+	public final void size(int width, int height) {
+		if ((width != this.width) || (height != this.height)) {
+			allocate(width, height);
+			canvas.reset();
+		}
+	}
+
+	/**
+	 * Frames are not paced when running headless, this is accepted so that
+	 * sketches run unchanged.
+	 */
+	public final void framerate(int fps) {
+	}
+
+	public final void point(int x1, int y1) {
+		canvas.point(x1, y1);
+	}
+
+	public final void points(int[] xy) {
+		canvas.points(xy);
+	}
+
+	public final void points(int[] xy, int offset, int count) {
+		canvas.points(xy, offset, count);
+	}
+
+	public final void line(int x1, int y1, int x2, int y2) {
+		canvas.line(x1, y1, x2, y2);
+	}
+
+	public final void lines(int[] xy) {
+		canvas.lines(xy);
+	}
+
+	public final void lines(int[] xy, int offset, int count) {
+		canvas.lines(xy, offset, count);
+	}
+
+	public final void triangle(int x1, int y1, int x2, int y2, int x3, int y3) {
+		canvas.triangle(x1, y1, x2, y2, x3, y3);
+	}
+
+	public final void quad(int x1, int y1, int x2, int y2, int x3, int y3,
+			int x4, int y4) {
+		canvas.quad(x1, y1, x2, y2, x3, y3, x4, y4);
+	}
+
+	public final void rect(int x, int y, int width, int height) {
+		canvas.rect(x, y, width, height);
+	}
+
+	public final void rects(int[] xywh) {
+		canvas.rects(xywh);
+	}
+
+	public final void rects(int[] xywh, int offset, int count) {
+		canvas.rects(xywh, offset, count);
+	}
+
+	public final void rectMode(int MODE) {
+		canvas.rectMode(MODE);
+	}
+
+	public final void ellipse(int x, int y, int width, int height) {
+		canvas.ellipse(x, y, width, height);
+	}
+
+	public final void ellipseMode(int MODE) {
+		canvas.ellipseMode(MODE);
+	}
+
+	public final void curve(int x1, int y1, int x2, int y2, int x3, int y3,
+			int x4, int y4) {
+		canvas.curve(x1, y1, x2, y2, x3, y3, x4, y4);
+	}
+
+	public final void bezier(int x1, int y1, int x2, int y2, int x3, int y3,
+			int x4, int y4) {
+		canvas.bezier(x1, y1, x2, y2, x3, y3, x4, y4);
+	}
+
+	public final void adaptiveCurves() {
+		canvas.adaptiveCurves(PMIDlet.ONE / 2);
+	}
+
+	public final void adaptiveCurves(int tolerance) {
+		canvas.adaptiveCurves(tolerance);
+	}
+
+	public final void noAdaptiveCurves() {
+		canvas.noAdaptiveCurves();
+	}
+
+	public final void strokeWeight(int width) {
+		canvas.strokeWeight(width);
+	}
+
+	public final void strokeCap(int cap) {
+		canvas.strokeCap(cap);
+	}
+
+	public final void strokeJoin(int join) {
+		canvas.strokeJoin(join);
+	}
+
+	public final void beginShape(int MODE) {
+		canvas.beginShape(MODE);
+	}
+
+	public final void endShape() {
+		canvas.endShape();
+	}
+
+	public final void vertex(int x, int y) {
+		canvas.vertex(x, y);
+	}
+
+	public final void curveVertex(int x, int y) {
+		canvas.curveVertex(x, y);
+	}
+
+	public final void bezierVertex(int x1, int y1, int x2, int y2, int x3,
+			int y3) {
+		canvas.bezierVertex(x1, y1, x2, y2, x3, y3);
+	}
+
+	public final void translate(int x, int y) {
+		canvas.translate(x, y);
+	}
+
+	public final void rotate(int angle) {
+		canvas.rotate(angle);
+	}
+
+	public final void scale(int s) {
+		canvas.scale(s);
+	}
+
+	public final void scale(int x, int y) {
+		canvas.scale(x, y);
+	}
+
+	public final void shearX(int angle) {
+		canvas.shearX(angle);
+	}
+
+	public final void shearY(int angle) {
+		canvas.shearY(angle);
+	}
+
+	public final void clip(int x, int y, int width, int height) {
+		canvas.clip(x, y, width, height);
+	}
+
+	public final void pushMatrix() {
+		canvas.pushMatrix();
+	}
+
+	public final void popMatrix() {
+		canvas.popMatrix();
+	}
+
+	public final void resetMatrix() {
+		canvas.resetMatrix();
+	}
+
+	public final void retainedMode() {
+		canvas.retainedMode(false);
+	}
+
+	public final void retainedMode(boolean threaded) {
+		canvas.retainedMode(threaded);
+	}
+
+	public final void noRetainedMode() {
+		canvas.noRetainedMode();
+	}
+
+	public final void background(int gray) {
+		canvas.background(gray);
+	}
+
+	public final void background(int value1, int value2, int value3) {
+		canvas.background(value1, value2, value3);
+	}
+
+	public final void background(PImage img) {
+		canvas.background(img);
+	}
+
+	public final void colorMode(int mode) {
+		canvas.colorMode(mode);
+	}
+
+	public final void colorMode(int mode, int range) {
+		colorMode(mode, range, range, range);
+	}
+
+	public final void colorMode(int mode, int range1, int range2, int range3) {
+		canvas.colorMode(mode, range1, range2, range3);
+	}
+
+	public final void colorMode(int mode, int range1, int range2, int range3,
+			int range4) {
+		canvas.colorMode(mode, range1, range2, range3, range4);
+	}
+
+	public final int color(int gray) {
+		return canvas.color(gray);
+	}
+
+	public final int color(int gray, int alpha) {
+		return canvas.color(gray, alpha);
+	}
+
+	public final int color(int value1, int value2, int value3) {
+		return canvas.color(value1, value2, value3);
+	}
+
+	public final int color(int value1, int value2, int value3, int alpha) {
+		return canvas.color(value1, value2, value3, alpha);
+	}
+
+	public final void colors(int[] value1, int[] value2, int[] value3, int[] out) {
+		canvas.colors(value1, value2, value3, out);
+	}
+
+	public final void stroke(int gray) {
+		canvas.stroke(gray);
+	}
+
+	public final void stroke(int value1, int value2, int value3) {
+		canvas.stroke(value1, value2, value3);
+	}
+
+	public final void noStroke() {
+		canvas.noStroke();
+	}
+
+	public final void fill(int gray) {
+		canvas.fill(gray);
+	}
+
+	public final void fill(int value1, int value2, int value3) {
+		canvas.fill(value1, value2, value3);
+	}
+
+	public final void noFill() {
+		canvas.noFill();
+	}
+
+	public final void image(PImage img, int x, int y) {
+		canvas.image(img, x, y);
+	}
+
+	public final void image(PImage img, int sx, int sy, int swidth,
+			int sheight, int dx, int dy) {
+		canvas.image(img, sx, sy, swidth, sheight, dx, dy);
+	}
+
+	public final void images(PImage[] images, int[] xy, int count) {
+		canvas.images(images, xy, count);
+	}
+
+	public final void imageMode(int mode) {
+		canvas.imageMode(mode);
+	}
+
+	public final void imageSmooth(boolean smooth) {
+		canvas.imageSmooth(smooth);
+	}
+
+	/**
+	 * Loads an image. Decoded images are kept in PImageCache, but here they
+	 * are PImage2s that can be drawn into, so every call returns a copy of
+	 * its own and changing it leaves the other callers' images as they were.
+	 * 
+	 * @see PImageCache
+	 */
+	public final PImage loadImage(String filename) {
+		return new PImage2(cachedImage(filename));
+	}
+
+	private PImage2 cachedImage(String filename) {
+		PImage2 image = (PImage2) PImageCache.get(filename);
+		if (image != null) {
+			return image;
+		}
+		InputStream is = openStream(filename);
+		if (is == null) {
+			throw new PException("loadImage(" + filename + ")", new FileNotFoundException(filename));
+		}
+		try {
+			image = decode(is);
+		} catch (IOException e) {
+			throw new PException("loadImage(" + filename + ")", e);
+		} finally {
+			try {
+				is.close();
+			} catch (IOException ioe) {
+			}
+		}
+		PImageCache.put(filename, image);
+		return image;
+	}
+
+	public final PImage loadImage(String filename, int targetWidth, int targetHeight) {
+		return loadImage(filename, targetWidth, targetHeight, ARGB_8888);
+	}
+
+	public final PImage loadImage(String filename, int format) {
+		return loadImage(filename, 0, 0, format);
+	}
+
+	/**
+	 * Loads an image scaled to the given size, a size of 0 keeping the
+	 * aspect ratio, with its pixels reduced to what the format holds. Like
+	 * loadImage(String), every call returns a copy of its own.
+	 */
+	public final PImage loadImage(String filename, int targetWidth, int targetHeight, int format) {
+		return new PImage2(cachedImage(filename, targetWidth, targetHeight, format));
+	}
+
+	private PImage2 cachedImage(String filename, int targetWidth, int targetHeight, int format) {
+		if ((format != ARGB_8888) && (format != RGB_565) && (format != ALPHA_8)) {
+			throw new IllegalArgumentException("Invalid image format");
+		}
+		String variant = targetWidth + "x" + targetHeight + ":" + format;
+		PImage2 image = (PImage2) PImageCache.get(filename, variant);
+		if (image != null) {
+			return image;
+		}
+		PImage2 source = cachedImage(filename);
+		image = source;
+		if ((targetWidth > 0) || (targetHeight > 0)) {
+			if (targetWidth <= 0) {
+				targetWidth = Math.max(1, source.width * targetHeight / source.height);
+			} else if (targetHeight <= 0) {
+				targetHeight = Math.max(1, source.height * targetWidth / source.width);
+			}
+			image = new PImage2(targetWidth, targetHeight);
+			image.copy(source, 0, 0, source.width, source.height, 0, 0, targetWidth, targetHeight,
+					((source.width >= (targetWidth << 1)) || (source.height >= (targetHeight << 1))) ? PImage2.BOX : PImage2.BILINEAR);
+		}
+		if (format != ARGB_8888) {
+			if (image == source) {
+				image = new PImage2(source);
+			}
+			int[] pixels = image.pixels;
+			//// masks keep the alpha of images that have some, like on Android
+			boolean opaque = true;
+			for (int i = 0; opaque && (i < pixels.length); i++) {
+				opaque = (pixels[i] >>> 24) == 0xff;
+			}
+			int c;
+			for (int i = 0; i < pixels.length; i++) {
+				c = pixels[i];
+				if (format == RGB_565) {
+					pixels[i] = 0xff000000 | (c & 0xf8fcf8);
+				} else if (!opaque) {
+					pixels[i] = c & 0xff000000;
+				} else {
+					pixels[i] = ((77 * ((c >> 16) & 0xff) + 151 * ((c >> 8) & 0xff) + 28 * (c & 0xff)) >> 8) << 24;
+				}
+			}
+		}
+		PImageCache.put(filename, variant, image);
+		return image;
+	}
+
+	public final void unloadImage(String filename) {
+		PImageCache.remove(filename);
+	}
+
+	public void trimMemory() {
+		PImageCache.clear();
+		PPool.clear();
+	}
+
+	public final PImage loadImage(byte[] data) {
+		try {
+			return decode(new ByteArrayInputStream(data));
+		} catch (IOException e) {
+			throw new PException("loadImage(data[" + data.length + "])", e);
+		}
+	}
+
+	private PImage2 decode(InputStream is) throws IOException {
+		BufferedImage image = ImageIO.read(is);
+		if (image == null) {
+			throw new IOException("Unsupported image format");
+		}
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] pixels = new int[width * height];
+		image.getRGB(0, 0, width, height, pixels, 0, width);
+		return new PImage2(pixels, width, height);
+	}
+
+	/**
+	 * Writes the frame drawn so far to a PNG file.
+	 */
+	public final void save(String filename) {
+		canvas.finish();
+		try {
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			image.setRGB(0, 0, width, height, frame.pixels, 0, width);
+			ImageIO.write(image, "png", new File(filename));
+		} catch (IOException e) {
+			throw new PException("save(" + filename + ")", e);
+		}
+	}
+
+	public final int millis() {
+		return (int) (System.currentTimeMillis() - startTime);
+	}
+
+	public final int abs(int value) {
+		return Math.abs(value);
+	}
+
+	public final int max(int value1, int value2) {
+		return Math.max(value1, value2);
+	}
+
+	public final int min(int value1, int value2) {
+		return Math.min(value1, value2);
+	}
+
+	public final int sq(int value) {
+		return value * value;
+	}
+
+	public final int constrain(int value, int min, int max) {
+		return Math.min(Math.max(value, min), max);
+	}
+
+	public final int random(int value1) {
+		return random(0, value1);
+	}
+
+	public final int random(int value1, int value2) {
+		if (random == null) {
+			random = new Random();
+		}
+		int min = Math.min(value1, value2);
+		int range = Math.abs(value2 - value1) + 1;
+
+		return min + Math.abs((random.nextInt() % range));
+	}
+
+	/**
+	 * Opens a resource of the application, looking in the resources
+	 * directory first and then on the class path. Returns null if there is
+	 * no such resource.
+	 */
+	public InputStream openStream(String fileName) {
+		try {
+			File file = new File(resources, fileName);
+			if (file.isFile()) {
+				return new FileInputStream(file);
+			}
+			return getClass().getResourceAsStream("/" + fileName);
+		} catch (Exception e) {
+			throw new PException("openStream(" + fileName + ")", e);
+		}
+	}
+
+	public final byte[] loadBytes(String filename) {
+		InputStream is = null;
+		try {
+			File stored = record(filename);
+			is = stored.isFile() ? new FileInputStream(stored) : openStream(filename);
+			if (is == null) {
+				return new byte[0];
+			}
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int bytesRead = is.read(buffer);
+			while (bytesRead >= 0) {
+				baos.write(buffer, 0, bytesRead);
+				bytesRead = is.read(buffer);
+			}
+			return baos.toByteArray();
+		} catch (IOException e) {
+			throw new PException("loadBytes(" + filename + ")", e);
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException ioe) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the records saved with saveStrings(), one per line, or else
+	 * the non empty lines of the resource.
+	 */
+	public final String[] loadStrings(String filename) {
+		File stored = record(filename);
+		BufferedReader r = null;
+		try {
+			InputStream is = stored.isFile() ? new FileInputStream(stored) : openStream(filename);
+			if (is == null) {
+				return new String[0];
+			}
+			r = new BufferedReader(new InputStreamReader(is));
+			Vector<String> v = new Vector<String>();
+			String line;
+			while ((line = r.readLine()) != null) {
+				if (stored.isFile()) {
+					v.addElement(line);
+				} else if ((line = line.trim()).length() > 0) {
+					v.addElement(line);
+				}
+			}
+			String[] strings = new String[v.size()];
+			v.copyInto(strings);
+			return strings;
+		} catch (IOException e) {
+			throw new PException("loadStrings(" + filename + ")", e);
+		} finally {
+			if (r != null) {
+				try {
+					r.close();
+				} catch (IOException ioe) {
+				}
+			}
+		}
+	}
+
+	public final void saveBytes(String filename, byte[] data) {
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(create(filename));
+			os.write(data);
+		} catch (IOException e) {
+			throw new PException("saveBytes(" + filename + ", data["
+					+ data.length + "])", e);
+		} finally {
+			if (os != null) {
+				try {
+					os.close();
+				} catch (IOException ioe) {
+				}
+			}
+		}
+	}
+
+	public final void saveStrings(String filename, String[] strings) {
+		Writer w = null;
+		try {
+			w = new OutputStreamWriter(new FileOutputStream(create(filename)));
+			for (int i = 0, length = strings.length; i < length; i++) {
+				w.write(strings[i]);
+				w.write('\n');
+			}
+		} catch (IOException e) {
+			throw new PException("saveStrings(" + filename + ", strings["
+					+ strings.length + "])", e);
+		} finally {
+			if (w != null) {
+				try {
+					w.close();
+				} catch (IOException ioe) {
+				}
+			}
+		}
+	}
+
+	private File record(String filename) {
+		return new File(storage, filename);
+	}
+
+	private File create(String filename) throws IOException {
+		// // max 32 char names on recordstores, kept so sketches fail the same way
+		if (filename.length() > 32) {
+			throw new IOException("filename must be 32 characters or less");
+		}
+		if (!storage.isDirectory() && !storage.mkdirs()) {
+			throw new IOException("Cannot create " + storage);
+		}
+		return record(filename);
+	}
+
+	public final void print(int data) {
+		System.out.print(String.valueOf(data));
+	}
+
+	public final void print(Object data) {
+		System.out.print(String.valueOf(data));
+	}
+
+	public final void print(String data) {
+		System.out.print(data);
+	}
+
+	public final void println(int data) {
+		System.out.println(String.valueOf(data));
+	}
+
+	public final void println(Object data) {
+		System.out.println(String.valueOf(data));
+	}
+
+	public final void println(String data) {
+		System.out.println(data);
+	}
+
+	/**
+	 * Runs the sketch class named by the first argument for the number of
+	 * frames given by the second, 100 by default, reports the throughput
+	 * and writes the last frame to the PNG file named by the third.
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("Usage: PHeadless sketch-class [frames] [output.png]");
+			return;
+		}
+		PHeadless sketch;
+		try {
+			sketch = (PHeadless) Class.forName(args[0]).newInstance();
+		} catch (Exception e) {
+			throw new PException("main(" + args[0] + ")", e);
+		}
+		int frames = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+		long start = System.currentTimeMillis();
+		float fps = sketch.run(frames);
+		System.out.println(args[0] + ": " + sketch.frameCount + " frames in "
+				+ (System.currentTimeMillis() - start) + " ms, " + fps + " frames/second");
+		if (args.length > 2) {
+			sketch.save(args[2]);
+		}
+	}
+
+}
@@ -26,6 +26,8 @@ package processing.core;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.Bitmap.Config;
 
 /**
@@ -43,6 +45,9 @@ public class PImage {
     /** If true, this is a mutable image */
     public final boolean mutable;
     
+    //// paint filtering scaled copies, created when first needed
+    private static Paint smoothPaint;
+    
     /** This constructor is intended only for use by PImage2, so it can set 
      * the properties without instantiating an actual Image object, which it
      * doesn't need since it uses an array of pixels instead.
@@ -65,7 +70,15 @@ public class PImage {
     }
     
     public PImage(int width, int height, int color) {
-        this(width, height);
+        //// opaque images are created in the pixel format of the frames they are drawn into
+        Config config = Config.ARGB_8888;
+        if (((color >>> 24) == 0xff) && (PCanvas.renderFormat == PMIDlet.RGB_565)) {
+            config = Config.RGB_565;
+        }
+        image = Bitmap.createBitmap(width, height, config);
+        this.width = width;
+        this.height = height;
+        mutable = true;
         Canvas g = new Canvas(image);
         g.drawColor(color);
     }
@@ -92,6 +105,100 @@ public class PImage {
         }
     }
     
+    /**
+     * Decodes an image at the given size in the given format.
+     * 
+     * @see #decode(String, byte[], int, int, int, int, int)
+     */
+    public PImage(byte[] data, int targetWidth, int targetHeight, int format) {
+        this(decode(null, data, 0, data.length, targetWidth, targetHeight, format));
+    }
+    
+    /**
+     * Decodes an image file, or the data when filename is null, scaled to
+     * targetWidth by targetHeight. A size of 0 keeps the aspect ratio, and
+     * both 0 keep the size of the image. The image is first decoded at the
+     * largest power of two reduction still at least the target size, so
+     * large images are never decoded in full, and only that is scaled to
+     * the exact size.
+     * 
+     * The format is PMIDlet.ARGB_8888, PMIDlet.RGB_565 for images without
+     * alpha, at half the memory, or PMIDlet.ALPHA_8 for masks, at a quarter.
+     * Masks keep the alpha of the image, or take its brightness if it is
+     * opaque.
+     */
+    static Bitmap decode(String filename, byte[] data, int offset, int length,
+                         int targetWidth, int targetHeight, int format) {
+        if ((format != PMIDlet.ARGB_8888) && (format != PMIDlet.RGB_565) && (format != PMIDlet.ALPHA_8)) {
+            throw new IllegalArgumentException("Invalid image format");
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if ((targetWidth > 0) || (targetHeight > 0)) {
+            //// read the size alone first
+            options.inJustDecodeBounds = true;
+            decode(filename, data, offset, length, options);
+            int width = options.outWidth;
+            int height = options.outHeight;
+            if ((width <= 0) || (height <= 0)) {
+                throw new RuntimeException("Unable to decode image");
+            }
+            if (targetWidth <= 0) {
+                targetWidth = Math.max(1, width * targetHeight / height);
+            } else if (targetHeight <= 0) {
+                targetHeight = Math.max(1, height * targetWidth / width);
+            }
+            int sample = 1;
+            while (((width / (sample << 1)) >= targetWidth) && ((height / (sample << 1)) >= targetHeight)) {
+                sample <<= 1;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sample;
+        }
+        options.inPreferredConfig = (format == PMIDlet.RGB_565) ? Config.RGB_565 : Config.ARGB_8888;
+        Bitmap bitmap = decode(filename, data, offset, length, options);
+        if (bitmap == null) {
+            throw new RuntimeException("Unable to decode image");
+        }
+        if ((targetWidth > 0) && ((bitmap.getWidth() != targetWidth) || (bitmap.getHeight() != targetHeight))) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, targetWidth, targetHeight, true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+        if (format == PMIDlet.ALPHA_8) {
+            Bitmap mask;
+            if (bitmap.hasAlpha()) {
+                mask = bitmap.extractAlpha();
+            } else {
+                //// move the brightness into the alpha to extract it
+                int width = bitmap.getWidth();
+                int height = bitmap.getHeight();
+                int[] pixels = PPool.ints(width * height);
+                bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+                int c;
+                for (int i = 0, count = width * height; i < count; i++) {
+                    c = pixels[i];
+                    pixels[i] = ((77 * ((c >> 16) & 0xff) + 151 * ((c >> 8) & 0xff) + 28 * (c & 0xff)) >> 8) << 24;
+                }
+                Bitmap alpha = Bitmap.createBitmap(pixels, width, height, Config.ARGB_8888);
+                PPool.recycle(pixels);
+                mask = alpha.extractAlpha();
+                alpha.recycle();
+            }
+            bitmap.recycle();
+            bitmap = mask;
+        }
+        return bitmap;
+    }
+    
+    private static Bitmap decode(String filename, byte[] data, int offset, int length, BitmapFactory.Options options) {
+        if (filename != null) {
+            return BitmapFactory.decodeFile(filename, options);
+        }
+        return BitmapFactory.decodeByteArray(data, offset, length, options);
+    }
+    
     /**
      * Copies a region of pixels from one image into another. If the source and
      * destination regions aren't the same size, it will automatically resize
@@ -125,14 +232,16 @@ public class PImage {
             swidth -= sx;
             sheight -= sy;
         }
-        Bitmap tmpImage = Bitmap.createBitmap(swidth, sheight, Config.ARGB_8888);
+        Bitmap tmpImage = PPool.bitmap(swidth, sheight,
+                                       (image.getConfig() == Config.RGB_565) ? Config.RGB_565 : Config.ARGB_8888);
         Canvas g = new Canvas(tmpImage);
         g.drawBitmap(image, -sx, -sy, null);
         copy(tmpImage, 0, 0, swidth, sheight, dx, dy, dwidth, dheight);
+        PPool.recycle(tmpImage);
     }
     
     public void copy(PImage source, int sx, int sy, int swidth, int sheight, int dx, int dy, int dwidth, int dheight) {
-        copy(source.image, sx, sy, swidth, sheight, dx, dy, dwidth, dheight);
+        copy(source.bitmap(), sx, sy, swidth, sheight, dx, dy, dwidth, dheight);
     }
     
     private void copy(Bitmap source, int sx, int sy, int swidth, int sheight, int dx, int dy, int dwidth, int dheight) {
@@ -145,40 +254,37 @@ public class PImage {
             dwidth = dwidth - dx;
             dheight = dheight - dy;
         }
+        //// one blit whether or not it scales, the canvas maps the source rectangle onto the destination
+        Rect src = new Rect(sx, sy, sx + swidth, sy + sheight);
+        Rect dst = new Rect(dx, dy, dx + dwidth, dy + dheight);
         Canvas g = new Canvas(image);
-        if ((dwidth == swidth) && (dheight == sheight)) {
-        	//left, top, right, bottom
-        	g.clipRect(dx, dy, dx + dwidth, dy + dheight);
-        	g.drawBitmap(source, dx, dy, null);
-        } else if (dwidth == swidth) {
-            int scaleY = dy - sy;
-            for (int y = 0; y < dheight; y++) {
-            	g.clipRect(dx, dy + y, dx + dwidth, 1);
-            	g.drawBitmap(source, dx - sx, scaleY, null);
-                scaleY = dy - sy - y * sheight / dheight + y;
-            }
-        } else if (dheight == sheight) {
-            int scaleX = dx - sx;
-            for (int x = 0; x < dwidth; x++) {
-            	g.clipRect(dx + x, dy, 1, dy + dheight);
-            	g.drawBitmap(source, scaleX, dy - sy, null);
-                scaleX = dx - sx - x * swidth / dwidth + x;
-            }
-        } else {
-            int scaleY = dy - sy;
-            for (int y = 0; y < dheight; y++) {
-                int scaleX = dx - sx;
-                for (int x = 0; x < dwidth; x++) {
-                	g.clipRect(dx + x, dy + y, 1, 1);
-                	g.drawBitmap(source, scaleX, scaleY, null);
-                    scaleX = dx - sx - x * swidth / dwidth + x;
-                }
-                scaleY = dy - sy - y * sheight / dheight + y;
-            }
+        g.drawBitmap(source, src, dst, PCanvas.imageSmooth ? smoothPaint() : null);
+    }
+    
+    private static Paint smoothPaint() {
+        if (smoothPaint == null) {
+            smoothPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
         }
+        return smoothPaint;
     }
     
     protected void draw(Canvas g, int x, int y) {
         g.drawBitmap(image, x, y, null);
     }
+    
+    /**
+     * Returns the native image, up to date with any pixels kept outside it.
+     */
+    protected Bitmap bitmap() {
+        return image;
+    }
+    
+    /**
+     * Reads a rectangle of the image into pixels, for renderers that draw
+     * without a Canvas and for images that do not keep their pixels in the
+     * native image.
+     */
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        image.getPixels(pixels, offset, stride, x, y, width, height);
+    }
 }
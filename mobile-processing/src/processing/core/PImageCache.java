@@ -0,0 +1,232 @@
+package processing.core;
+
+/**
+ * Android port of the Mobile Processing project - http://mobile.processing.org
+ *
+ * The author of Mobile Processing is Francis Li (mail@francisli.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import processing.image2.PImage2;
+
+/**
+ * Keeps images decoded by loadImage() by name, so that loading the same
+ * image again does not decode it again. The images kept are limited to a
+ * budget in bytes, past which the least recently loaded ones are dropped.
+ *
+ * An image decoded differently from the same file, at another size or in
+ * another format, is kept as a variant of the name, and forgetting the name
+ * forgets all of its variants.
+ *
+ * Dropping an image only forgets it, its bitmap is never recycled, so an
+ * image still in use by the sketch stays valid. Until it is garbage
+ * collected, loading it again returns the same image.
+ *
+ * Every caller of get() shares the image kept, so only images that can not
+ * be changed are handed out as they are; loadImage() hands out copies of
+ * mutable ones.
+ */
+public final class PImageCache {
+
+    //// separates the name from the variant in the keys, never part of a file name
+    private static final char VARIANT = '\0';
+
+    //// images by key, least recently used first
+    private static final LinkedHashMap<String, PImage> images = new LinkedHashMap<String, PImage>(16, 0.75f, true);
+    //// images dropped over the budget, found again while something else holds them
+    private static final HashMap<String, WeakReference<PImage>> dropped = new HashMap<String, WeakReference<PImage>>();
+    private static int      bytes;
+    private static int      budget = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+
+    private static int      hits;
+    private static int      misses;
+    private static int      evictions;
+
+    private PImageCache() {
+    }
+
+    /**
+     * Returns the image kept under the name, or null.
+     */
+    public static PImage get(String name) {
+        return get(name, null);
+    }
+
+    /**
+     * Returns the variant of the image kept under the name, or null.
+     */
+    public static synchronized PImage get(String name, String variant) {
+        String key = key(name, variant);
+        PImage image = images.get(key);
+        if (image == null) {
+            WeakReference<PImage> reference = dropped.remove(key);
+            if (reference != null) {
+                image = reference.get();
+            }
+            if (image == null) {
+                misses++;
+                return null;
+            }
+            add(key, image);
+        }
+        hits++;
+        return image;
+    }
+
+    /**
+     * Keeps the image under the name. Images larger than the whole budget
+     * are not kept.
+     */
+    public static void put(String name, PImage image) {
+        put(name, null, image);
+    }
+
+    /**
+     * Keeps the image as a variant of the name.
+     */
+    public static synchronized void put(String name, String variant, PImage image) {
+        String key = key(name, variant);
+        PImage old = images.remove(key);
+        if (old != null) {
+            bytes -= size(old);
+        }
+        dropped.remove(key);
+        add(key, image);
+    }
+
+    /**
+     * Forgets the image kept under the name and all of its variants.
+     */
+    public static synchronized void remove(String name) {
+        String prefix = name + VARIANT;
+        Iterator<HashMap.Entry<String, PImage>> entries = images.entrySet().iterator();
+        HashMap.Entry<String, PImage> entry;
+        while (entries.hasNext()) {
+            entry = entries.next();
+            if (entry.getKey().equals(name) || entry.getKey().startsWith(prefix)) {
+                entries.remove();
+                bytes -= size(entry.getValue());
+            }
+        }
+        Iterator<String> keys = dropped.keySet().iterator();
+        String key;
+        while (keys.hasNext()) {
+            key = keys.next();
+            if (key.equals(name) || key.startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Sets the number of bytes kept images may take, dropping the least
+     * recently used ones over it.
+     */
+    public static synchronized void budget(int bytes) {
+        budget = bytes;
+        trim(budget);
+    }
+
+    /**
+     * Forgets all images.
+     */
+    public static synchronized void clear() {
+        images.clear();
+        dropped.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Returns the number of loads served from the cache.
+     */
+    public static int hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of loads that had to decode.
+     */
+    public static int misses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of images dropped to stay within the budget.
+     */
+    public static int evictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of bytes taken by kept images.
+     */
+    public static synchronized int bytes() {
+        return bytes;
+    }
+
+    private static String key(String name, String variant) {
+        return (variant == null) ? name : name + VARIANT + variant;
+    }
+
+    private static void add(String key, PImage image) {
+        int size = size(image);
+        if (size > budget) {
+            return;
+        }
+        images.put(key, image);
+        bytes += size;
+        trim(budget);
+    }
+
+    private static void trim(int limit) {
+        Iterator<HashMap.Entry<String, PImage>> eldest = images.entrySet().iterator();
+        HashMap.Entry<String, PImage> entry;
+        if (bytes <= limit) {
+            return;
+        }
+        while ((bytes > limit) && eldest.hasNext()) {
+            entry = eldest.next();
+            eldest.remove();
+            bytes -= size(entry.getValue());
+            dropped.put(entry.getKey(), new WeakReference<PImage>(entry.getValue()));
+            evictions++;
+        }
+        //// forget dropped images that have been collected
+        Iterator<WeakReference<PImage>> references = dropped.values().iterator();
+        while (references.hasNext()) {
+            if (references.next().get() == null) {
+                references.remove();
+            }
+        }
+    }
+
+    private static int size(PImage image) {
+        //// a PImage2 is counted with the bitmap it creates when drawn, so its size never changes
+        if (image instanceof PImage2) {
+            return ((PImage2) image).pixels.length << 3;
+        }
+        return image.image.getRowBytes() * image.height;
+    }
+}
@@ -35,10 +35,8 @@ import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Typeface;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.Display;
 import android.view.KeyEvent;
-import android.view.WindowManager;
 
 /**
  * 
@@ -63,6 +61,12 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 	public static final int QUAD_STRIP = 7;
 	public static final int POLYGON = 8;
 
+	public static final int SQUARE = 1 << 0;
+	public static final int ROUND = 1 << 1;
+	public static final int PROJECT = 1 << 2;
+	public static final int MITER = 1 << 3;
+	public static final int BEVEL = 1 << 5;
+
 	public static final int UP = KeyEvent.KEYCODE_DPAD_UP;
 	public static final int DOWN = KeyEvent.KEYCODE_DPAD_DOWN;
 	public static final int LEFT = KeyEvent.KEYCODE_DPAD_LEFT;
@@ -95,6 +99,13 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 	public static final int RGB = 0;
 	public static final int HSB = 1;
 
+	public static final int ANDROID = 0;
+	public static final int P2D = 1;
+
+	public static final int RGB_565 = 0;
+	public static final int ARGB_8888 = 1;
+	public static final int ALPHA_8 = 2;
+
 	protected boolean pointerPressed;
 	protected int pointerX;
 	protected int pointerY;
@@ -156,8 +167,6 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 	private Object[] eventData;
 	private Object[] eventDataClone;
 
-	private int numColors = 16777216;
-	
 	private AlertDialog errorDialog;
 
 	/** Creates a new instance of PMIDlet */
@@ -168,16 +177,6 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 	protected void onStart() {
 		super.onStart();
 
-		WindowManager w = getWindowManager();
-		int pxFormat = w.getDefaultDisplay().getPixelFormat();
-		Log.d(tag, "Pixel format: " + pxFormat);
-
-		/*
-		 * Bitmap.Config.ARGB_8888: numColors = 16777216; //24-bit
-		 * Bitmap.Config.ARGB_4444: numColors = 4096; //12-bit
-		 * Bitmap.Config.RGB_565: numColors = 65536; //16-bit
-		 */
-		
 		AlertDialog.Builder builder = new AlertDialog.Builder(this);
 		
 		//create a dialog for display of errors/exceptions
@@ -211,7 +210,7 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 		}
 		redraw = true;
 
-		setContentView(canvas);
+		setContentView(canvas.surface);
 	}
 
 	@Override
@@ -227,6 +226,12 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 		running = false;
 	}
 	
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		trimMemory();
+	}
+	
 	@Override
 	public void onClick(DialogInterface dialog, int which) {
 		//if its the error / exit dialog
@@ -239,6 +244,7 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 	public final void run() {
 		try {
 			if (!setup) {
+				canvas.reset();
 				setup();
 				lastFrameTime = startTime - msPerFrame;
 				setup = true;
@@ -250,6 +256,7 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 				if (redraw || (running && (elapsed >= msPerFrame))) {
 					canvas.reset();
 					draw();
+					canvas.publish();
 					runtime.gc();
 					lastFrameTime = currentTime;
 					framerate = 1000 / elapsed;
@@ -343,6 +350,11 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 				break;
 			case EVENT_LIBRARY:
 				Object[] objs = (Object[]) eventDataClone[i];
+				if ((objs[0] instanceof PRequest)
+						&& (eventValuesClone[i] == PRequest.EVENT_PROGRESS)) {
+					//let the request queue its next progress event
+					((PRequest) objs[0]).progressPending = false;
+				}
 				libraryEvent(objs[0], eventValuesClone[i], objs[1]);
 				synchronized (objs[0]) {
 					objs[0].notifyAll();
@@ -727,17 +739,41 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 	}
 
 	public final int numColors() {
-		return numColors;
+		return canvas.numColors();
+	}
+
+	public final void renderFormat(int format) {
+		canvas.renderFormat(format);
+	}
+
+	public final void renderFormat(int format, boolean dither) {
+		canvas.renderFormat(format, dither);
 	}
 
 	public final void point(int x1, int y1) {
 		canvas.point(x1, y1);
 	}
 
+	public final void points(int[] xy) {
+		canvas.points(xy);
+	}
+
+	public final void points(int[] xy, int offset, int count) {
+		canvas.points(xy, offset, count);
+	}
+
 	public final void line(int x1, int y1, int x2, int y2) {
 		canvas.line(x1, y1, x2, y2);
 	}
 
+	public final void lines(int[] xy) {
+		canvas.lines(xy);
+	}
+
+	public final void lines(int[] xy, int offset, int count) {
+		canvas.lines(xy, offset, count);
+	}
+
 	public final void triangle(int x1, int y1, int x2, int y2, int x3, int y3) {
 		canvas.triangle(x1, y1, x2, y2, x3, y3);
 	}
@@ -751,6 +787,14 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 		canvas.rect(x, y, width, height);
 	}
 
+	public final void rects(int[] xywh) {
+		canvas.rects(xywh);
+	}
+
+	public final void rects(int[] xywh, int offset, int count) {
+		canvas.rects(xywh, offset, count);
+	}
+
 	public final void rectMode(int MODE) {
 		canvas.rectMode(MODE);
 	}
@@ -773,10 +817,30 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 		canvas.bezier(x1, y1, x2, y2, x3, y3, x4, y4);
 	}
 
+	public final void adaptiveCurves() {
+		canvas.adaptiveCurves(ONE / 2);
+	}
+
+	public final void adaptiveCurves(int tolerance) {
+		canvas.adaptiveCurves(tolerance);
+	}
+
+	public final void noAdaptiveCurves() {
+		canvas.noAdaptiveCurves();
+	}
+
 	public final void strokeWeight(int width) {
 		canvas.strokeWeight(width);
 	}
 
+	public final void strokeCap(int cap) {
+		canvas.strokeCap(cap);
+	}
+
+	public final void strokeJoin(int join) {
+		canvas.strokeJoin(join);
+	}
+
 	public final void beginShape(int MODE) {
 		canvas.beginShape(MODE);
 	}
@@ -802,6 +866,26 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 		canvas.translate(x, y);
 	}
 
+	public final void rotate(int angle) {
+		canvas.rotate(angle);
+	}
+
+	public final void scale(int s) {
+		canvas.scale(s);
+	}
+
+	public final void scale(int x, int y) {
+		canvas.scale(x, y);
+	}
+
+	public final void shearX(int angle) {
+		canvas.shearX(angle);
+	}
+
+	public final void shearY(int angle) {
+		canvas.shearY(angle);
+	}
+
 	public final void clip(int x, int y, int width, int height) {
 		canvas.clip(x, y, width, height);
 	}
@@ -818,6 +902,22 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 		canvas.resetMatrix();
 	}
 
+	public final void retainedMode() {
+		canvas.retainedMode(false);
+	}
+
+	public final void retainedMode(boolean threaded) {
+		canvas.retainedMode(threaded);
+	}
+
+	public final void noRetainedMode() {
+		canvas.noRetainedMode();
+	}
+
+	public final void renderer(int type) {
+		canvas.renderer(type);
+	}
+
 	public final void background(int gray) {
 		canvas.background(gray);
 	}
@@ -863,6 +963,10 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 		return canvas.color(value1, value2, value3, alpha);
 	}
 
+	public final void colors(int[] value1, int[] value2, int[] value3, int[] out) {
+		canvas.colors(value1, value2, value3, out);
+	}
+
 	public final void stroke(int gray) {
 		canvas.stroke(gray);
 	}
@@ -887,15 +991,116 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 		canvas.noFill();
 	}
 
+	/**
+	 * Loads an image, or returns the one already loaded under the same name.
+	 * Images decoded from files can not be changed, so every caller can be
+	 * handed the same one.
+	 * 
+	 * @see PImageCache
+	 */
 	public final PImage loadImage(String filename) {
+		PImage image = PImageCache.get(filename);
+		if (image == null) {
+			try {
+				Bitmap img = BitmapFactory.decodeFile(filename);
+				image = new PImage(img);
+			} catch (Exception e) {
+				throw new PException("loadImage(" + filename + ")", e);
+			}
+			PImageCache.put(filename, image);
+		}
+		return image;
+	}
+
+	/**
+	 * Loads an image scaled to the given size, decoding no more of it than
+	 * needed. A size of 0 keeps the aspect ratio.
+	 */
+	public final PImage loadImage(String filename, int targetWidth, int targetHeight) {
+		return loadImage(filename, targetWidth, targetHeight, ARGB_8888);
+	}
+
+	/**
+	 * Loads an image in the given format, ARGB_8888, RGB_565 or ALPHA_8.
+	 */
+	public final PImage loadImage(String filename, int format) {
+		return loadImage(filename, 0, 0, format);
+	}
+
+	/**
+	 * Loads an image scaled to the given size in the given format.
+	 * 
+	 * @see PImage#decode(String, byte[], int, int, int, int, int)
+	 */
+	public final PImage loadImage(String filename, int targetWidth, int targetHeight, int format) {
+		String variant = targetWidth + "x" + targetHeight + ":" + format;
+		PImage image = PImageCache.get(filename, variant);
+		if (image == null) {
+			try {
+				image = new PImage(PImage.decode(filename, null, 0, 0, targetWidth, targetHeight, format));
+			} catch (Exception e) {
+				throw new PException("loadImage(" + filename + ")", e);
+			}
+			PImageCache.put(filename, variant, image);
+		}
+		return image;
+	}
+
+	/**
+	 * Packs the images into an atlas, under their file names.
+	 */
+	public final PAtlas loadAtlas(String[] filenames) {
+		PImage[] images = new PImage[filenames.length];
+		for (int i = 0; i < filenames.length; i++) {
+			images[i] = loadImage(filenames[i]);
+		}
+		PAtlas atlas = new PAtlas();
+		atlas.pack(filenames, images);
+		//// the atlas holds the only copy needed
+		for (int i = 0; i < filenames.length; i++) {
+			unloadImage(filenames[i]);
+		}
+		return atlas;
+	}
+
+	/**
+	 * Packs the images listed in a manifest file into an atlas.
+	 * 
+	 * @see PAtlas#manifest(InputStream)
+	 */
+	public final PAtlas loadAtlas(String manifest) {
+		InputStream is = null;
 		try {
-			Bitmap img = BitmapFactory.decodeFile(filename);
-			return new PImage(img);
-		} catch (Exception e) {
-			throw new PException("loadImage(" + filename + ")", e);
+			is = new FileInputStream(manifest);
+			return loadAtlas(PAtlas.manifest(is));
+		} catch (IOException e) {
+			throw new PException("loadAtlas(" + manifest + ")", e);
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException ioe) {
+				}
+			}
 		}
 	}
 
+	/**
+	 * Forgets a loaded image, at every size and in every format it was
+	 * loaded, so that loading it again decodes it again.
+	 */
+	public final void unloadImage(String filename) {
+		PImageCache.remove(filename);
+	}
+
+	/**
+	 * Drops loaded images and idle buffers kept for reuse.
+	 */
+	public void trimMemory() {
+		PImageCache.clear();
+		PPool.clear();
+	}
+
 	public final PImage loadImage(byte[] data) {
 		return new PImage(data);
 	}
@@ -909,10 +1114,18 @@ public abstract class PMIDlet extends Activity implements DialogInterface.OnClic
 		canvas.image(img, sx, sy, swidth, sheight, dx, dy);
 	}
 
+	public final void images(PImage[] images, int[] xy, int count) {
+		canvas.images(images, xy, count);
+	}
+
 	public final void imageMode(int mode) {
 		canvas.imageMode(mode);
 	}
 
+	public final void imageSmooth(boolean smooth) {
+		canvas.imageSmooth(smooth);
+	}
+
 	public final PFont loadFont(String fontname, int color, int bgcolor) {
 		try {
 			return new PFont(getClass().getResourceAsStream("/" + fontname),
@@ -0,0 +1,177 @@
+package processing.core;
+
+/**
+ * Android port of the Mobile Processing project - http://mobile.processing.org
+ *
+ * The author of Mobile Processing is Francis Li (mail@francisli.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+/**
+ * Keeps bitmaps and int arrays that are no longer used so that later
+ * allocations of the same size and config can reuse them. Buffers are only
+ * held while idle: a buffer is taken out of the pool by bitmap() or ints()
+ * and handed back with recycle() when its owner is done with it. The idle
+ * buffers are limited to a budget in bytes, past which the least recently
+ * returned ones are dropped.
+ *
+ * Without Android only the int array methods may be used.
+ */
+public final class PPool {
+
+    //// idle buffers, least recently returned first
+    private static final ArrayList<Object> buffers = new ArrayList<Object>();
+    private static int      bytes;
+    private static int      budget = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+
+    private static int      hits;
+    private static int      misses;
+
+    private PPool() {
+    }
+
+    /**
+     * Returns a bitmap of the given size and config, cleared to transparent
+     * black, reusing an idle one if possible.
+     */
+    public static synchronized Bitmap bitmap(int width, int height, Config config) {
+        Object buffer;
+        Bitmap bitmap;
+        for (int i = buffers.size() - 1; i >= 0; i--) {
+            buffer = buffers.get(i);
+            if (!(buffer instanceof int[])) {
+                bitmap = (Bitmap) buffer;
+                if ((bitmap.getWidth() == width) && (bitmap.getHeight() == height) && (bitmap.getConfig() == config)) {
+                    buffers.remove(i);
+                    bytes -= size(bitmap);
+                    hits++;
+                    bitmap.eraseColor(0);
+                    return bitmap;
+                }
+            }
+        }
+        misses++;
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Returns an int array of the given length, reusing an idle one if
+     * possible. The contents of a reused array are left as they were.
+     */
+    public static synchronized int[] ints(int length) {
+        Object buffer;
+        for (int i = buffers.size() - 1; i >= 0; i--) {
+            buffer = buffers.get(i);
+            if ((buffer instanceof int[]) && (((int[]) buffer).length == length)) {
+                buffers.remove(i);
+                bytes -= length << 2;
+                hits++;
+                return (int[]) buffer;
+            }
+        }
+        misses++;
+        return new int[length];
+    }
+
+    /**
+     * Hands a bitmap that will not be used again by its owner back to the
+     * pool.
+     */
+    public static synchronized void recycle(Bitmap bitmap) {
+        if ((bitmap != null) && !bitmap.isRecycled() && bitmap.isMutable()) {
+            add(bitmap, size(bitmap));
+        }
+    }
+
+    public static synchronized void recycle(int[] ints) {
+        if (ints != null) {
+            add(ints, ints.length << 2);
+        }
+    }
+
+    /**
+     * Sets the number of bytes idle buffers may take, dropping the least
+     * recently returned ones over it.
+     */
+    public static synchronized void budget(int bytes) {
+        budget = bytes;
+        trim(budget);
+    }
+
+    /**
+     * Drops all idle buffers.
+     */
+    public static synchronized void clear() {
+        trim(0);
+    }
+
+    /**
+     * Returns the number of requests served with an idle buffer.
+     */
+    public static int hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of requests that allocated a new buffer.
+     */
+    public static int misses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of bytes taken by idle buffers.
+     */
+    public static synchronized int bytes() {
+        return bytes;
+    }
+
+    private static void add(Object buffer, int size) {
+        for (int i = buffers.size() - 1; i >= 0; i--) {
+            if (buffers.get(i) == buffer) {
+                return;
+            }
+        }
+        buffers.add(buffer);
+        bytes += size;
+        trim(budget);
+    }
+
+    private static void trim(int limit) {
+        Object buffer;
+        while ((bytes > limit) && !buffers.isEmpty()) {
+            buffer = buffers.remove(0);
+            if (buffer instanceof int[]) {
+                bytes -= ((int[]) buffer).length << 2;
+            } else {
+                bytes -= size((Bitmap) buffer);
+                ((Bitmap) buffer).recycle();
+            }
+        }
+    }
+
+    private static int size(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
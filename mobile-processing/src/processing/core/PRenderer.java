@@ -0,0 +1,138 @@
+package processing.core;
+
+/**
+ * Android port of the Mobile Processing project - http://mobile.processing.org
+ *
+ * The author of Mobile Processing is Francis Li (mail@francisli.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+
+/**
+ * The drawing operations PCanvas performs on a frame. Colors are ARGB ints
+ * and are blended over the frame. Coordinates are in drawing coordinates,
+ * offset by the current translation or transform, except for setClip() and
+ * copy() which work in frame coordinates. Every operation is limited to the current
+ * clip.
+ *
+ * @see PCanvasRenderer
+ * @see PSoftwareRenderer
+ */
+public interface PRenderer {
+
+    public int getWidth();
+
+    public int getHeight();
+
+    /**
+     * Sets the offset added to the coordinates of everything drawn.
+     */
+    public void setTranslate(int x, int y);
+
+    /**
+     * Returns true if setTransform() is supported. Otherwise PCanvas only
+     * translates the renderer and transforms vertices itself.
+     */
+    public boolean transforms();
+
+    /**
+     * Sets the affine transform applied to everything drawn, in 16.16 fixed
+     * point, replacing the translation.
+     */
+    public void setTransform(int m00, int m01, int m02, int m10, int m11, int m12);
+
+    /**
+     * Replaces the clip with the given rectangle in frame coordinates.
+     */
+    public void setClip(int left, int top, int right, int bottom);
+
+    /**
+     * Sets the weight, cap and join used by the stroke operations.
+     */
+    public void setStrokeStyle(int weight, int cap, int join);
+
+    /**
+     * Turns on dithering of colors the frame can not hold exactly, for
+     * frames with fewer than 8 bits per channel.
+     */
+    public void setDither(boolean dither);
+
+    /**
+     * Returns true if points, lines and polylines are drawn at the stroke
+     * weight. Otherwise they are always one pixel wide and PCanvas builds
+     * wide strokes out of spans.
+     */
+    public boolean wideStrokes();
+
+    /**
+     * Paints the whole clip with the color.
+     */
+    public void background(int color);
+
+    public void point(int x, int y, int color);
+
+    /**
+     * Draws count points whose coordinates follow each other in xy.
+     */
+    public void points(int[] xy, int offset, int count, int color);
+
+    public void line(int x1, int y1, int x2, int y2, int color);
+
+    /**
+     * Draws count separate lines, four coordinates each.
+     */
+    public void lines(int[] xy, int offset, int count, int color);
+
+    /**
+     * Draws the vertices between the given indices as one joined stroke.
+     */
+    public void polyline(int[] xy, int startIndex, int endIndex, boolean closed, int color);
+
+    /**
+     * Fills the pixels of row y from x1 up to but not including x2.
+     */
+    public void span(int x1, int x2, int y, int color);
+
+    public void fillRect(int x, int y, int width, int height, int color);
+
+    public void strokeRect(int x, int y, int width, int height, int color);
+
+    public void fillEllipse(int x, int y, int width, int height, int color);
+
+    public void strokeEllipse(int x, int y, int width, int height, int color);
+
+    public void image(PImage img, int x, int y);
+
+    public void text(PFont font, String str, int x, int y, int align);
+
+    /**
+     * Copies a rectangle of another frame of the same size into the same
+     * place in this one, ignoring translation and clip.
+     */
+    public void copy(PRenderer source, int left, int top, int right, int bottom);
+
+    /**
+     * Reads a rectangle of the frame, in frame coordinates, into pixels.
+     */
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+
+    /**
+     * Makes everything drawn so far visible in the frame bitmap.
+     */
+    public void flush();
+}
@@ -23,7 +23,6 @@ package processing.core;
  * @author Paul Gregoire (mondain@gmail.com)
  */
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -31,8 +30,6 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
@@ -40,7 +37,9 @@ import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.params.HttpParams;
-import org.apache.http.util.EntityUtils;
+
+import processing.image2.PImage2;
+import processing.image2.PImageDecoder;
 
 import android.util.Log;
 
@@ -139,6 +138,18 @@ public class PRequest extends InputStream implements Runnable {
 	 * @thisreftext the PRequest class
 	 */
 	public static final int EVENT_ERROR = 2;
+	
+	/**
+	 * Event fired by readImage() when more rows of the image have been
+	 * decoded. Only one is queued at a time, rows decoded before the sketch
+	 * receives it are shown by the same event. The data object will be the
+	 * PImage2 being decoded, the same object every time and in the
+	 * <b>EVENT_DONE</b> event.
+	 * 
+	 * @thisref PRequest
+	 * @thisreftext the PRequest class
+	 */
+	public static final int EVENT_PROGRESS = 3;
 
 	protected PMIDlet midlet;
 
@@ -150,6 +161,12 @@ public class PRequest extends InputStream implements Runnable {
 	protected HttpRequestBase request;
 	
 	protected InputStream is;
+	//// length of the response body, or -1 if the server did not say
+	protected long contentLength = -1;
+	//// true if the response is read by readImage()
+	protected boolean image;
+	//// true while an EVENT_PROGRESS event waits in the sketch's queue
+	volatile boolean progressPending;
 
 	protected String authorization;
 
@@ -200,8 +217,8 @@ public class PRequest extends InputStream implements Runnable {
 				}
 				params.setParameter("Connection", "close");
 				request.setParams(params);
-				//
-				client.execute(request, new StateResponseHandler<Integer>());
+				//the body is left in the connection until it is read
+				connected(client.execute(request));
 				// done, notify midlet
 				boolean notify = false;
 				synchronized (this) {
@@ -222,15 +239,21 @@ public class PRequest extends InputStream implements Runnable {
 					}
 				}
 				// read the response
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				byte[] buffer = new byte[1024];
-				int bytesRead = is.read(buffer);
-				while (bytesRead >= 0) {
-					baos.write(buffer, 0, bytesRead);
-					bytesRead = is.read(buffer);
+				Object result;
+				if (image) {
+					result = PImageDecoder.decode(is, new PImageDecoder.Progress() {
+						public void rows(PImage2 img, int top, int bottom) {
+							//the event carries the same image every time, so one
+							//waiting in the queue already shows these rows
+							if ((state == STATE_FETCHING) && !progressPending) {
+								progressPending = true;
+								midlet.enqueueLibraryEvent(PRequest.this, EVENT_PROGRESS, img);
+							}
+						}
+					});
+				} else {
+					result = readFully();
 				}
-				buffer = null;
-				buffer = baos.toByteArray();
 				// done, notify midlet
 				boolean notify = false;
 				synchronized (this) {
@@ -240,7 +263,7 @@ public class PRequest extends InputStream implements Runnable {
 					}
 				}
 				if (notify) {
-					midlet.enqueueLibraryEvent(this, EVENT_DONE, buffer);
+					midlet.enqueueLibraryEvent(this, EVENT_DONE, result);
 				}
 			}
 		} catch (Exception e) {
@@ -303,6 +326,47 @@ public class PRequest extends InputStream implements Runnable {
 		t.start();
 	}
 
+	/**
+	 * Reads the rest of the response as an image, decoding it as it
+	 * downloads without keeping the encoded bytes. While it is downloading,
+	 * <b>EVENT_PROGRESS</b> events carry the partly decoded image, and
+	 * <b>EVENT_DONE</b> the whole one, a PImage2. An image that is cut short
+	 * or larger than PImageDecoder.MAX_PIXELS ends with <b>EVENT_ERROR</b>.
+	 * 
+	 * @thisref request
+	 * @thisreftext any variable of the type PRequest
+	 * @return None
+	 */
+	public void readImage() {
+		image = true;
+		readBytes();
+	}
+
+	private byte[] readFully() throws IOException {
+		byte[] buffer;
+		int length = 0, bytesRead;
+		if ((contentLength >= 0) && (contentLength <= Integer.MAX_VALUE)) {
+			//// read straight into an array of the announced size, with no second copy
+			buffer = new byte[(int) contentLength];
+			while (length < buffer.length) {
+				bytesRead = is.read(buffer, length, buffer.length - length);
+				if (bytesRead < 0) {
+					throw new IOException("Response shorter than its length");
+				}
+				length += bytesRead;
+			}
+			return buffer;
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		buffer = new byte[1024];
+		bytesRead = is.read(buffer);
+		while (bytesRead >= 0) {
+			baos.write(buffer, 0, bytesRead);
+			bytesRead = is.read(buffer);
+		}
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Closes the connection and releases the resources associated with this
 	 * request to the server.
@@ -334,32 +398,23 @@ public class PRequest extends InputStream implements Runnable {
 		}
 	}
 	
-	@SuppressWarnings("hiding")
-	private class StateResponseHandler<Integer> implements ResponseHandler<Integer> {
-
-		@Override
-		public Integer handleResponse(HttpResponse response)
-				throws ClientProtocolException, IOException {
-			//get the response code
-			int statusCode = response.getStatusLine().getStatusCode();
-			switch (statusCode) {
-			case 200: //Ok
-				//look for an entity
-				HttpEntity entity = response.getEntity();
-				if (entity instanceof ByteArrayEntity) {
-					bytes = EntityUtils.toByteArray(entity);
-					//create an input stream for reading our bytes
-					is = new ByteArrayInputStream(bytes);
-				} else {
-					Log.d(tag, "Response: " + EntityUtils.toString(entity));
-				}
-			
-				break;
-			
+	private void connected(HttpResponse response) throws IOException {
+		//get the response code
+		int statusCode = response.getStatusLine().getStatusCode();
+		switch (statusCode) {
+		case 200: //Ok
+			//look for an entity
+			HttpEntity entity = response.getEntity();
+			if (entity != null) {
+				contentLength = entity.getContentLength();
+				//read the body from the connection as it is needed
+				is = entity.getContent();
 			}
-			return null;
+			break;
+		default:
+			Log.d(tag, "Response: " + statusCode);
+			break;
 		}
-		
 	}
 	
 }
@@ -0,0 +1,571 @@
+package processing.core;
+
+/**
+ * Android port of the Mobile Processing project - http://mobile.processing.org
+ *
+ * The author of Mobile Processing is Francis Li (mail@francisli.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Bitmap.Config;
+
+/**
+ * Renders a frame in Java into an int array of ARGB pixels, one row after
+ * another, the same layout as PImage2.pixels. Nothing is handed to native
+ * code while drawing; the changed part of the array is copied into the
+ * frame bitmap by flush(). Lines and points are one pixel wide, PCanvas
+ * builds wider strokes out of spans.
+ */
+public class PSoftwareRenderer implements PRenderer {
+
+    public final int[]      pixels;
+    public final int        width;
+    public final int        height;
+
+    //// bitmap the pixels are flushed to, null if only the array is used
+    protected final Bitmap  frame;
+
+    protected int           translateX;
+    protected int           translateY;
+    protected int           clipLeft;
+    protected int           clipTop;
+    protected int           clipRight;
+    protected int           clipBottom;
+
+    protected int           strokeWeight;
+    protected int           strokeCap;
+
+    //// bounds of the pixels changed since the last flush
+    protected int           touchedLeft;
+    protected int           touchedTop;
+    protected int           touchedRight;
+    protected int           touchedBottom;
+
+    //// pixels of the region being flushed with an ordered dither applied, when dithering to RGB_565
+    protected boolean       dither;
+    protected int[]         dithered;
+
+    //// pixels of immutable images, read back from their bitmaps once
+    protected WeakHashMap<PImage, int[]> imagePixels;
+    protected int[]         scratch;
+
+    public PSoftwareRenderer(Bitmap frame) {
+        this(frame, frame.getWidth(), frame.getHeight());
+    }
+
+    public PSoftwareRenderer(int width, int height) {
+        this(null, width, height);
+    }
+
+    protected PSoftwareRenderer(Bitmap frame, int width, int height) {
+        this.frame = frame;
+        this.width = width;
+        this.height = height;
+        if (frame != null) {
+            //// every pixel is read from the frame, so a pooled array will do
+            pixels = PPool.ints(width * height);
+            frame.getPixels(pixels, 0, width, 0, 0, width, height);
+        } else {
+            pixels = new int[width * height];
+        }
+        clipRight = width;
+        clipBottom = height;
+        strokeWeight = 1;
+        strokeCap = PMIDlet.ROUND;
+        touchedLeft = touchedTop = Integer.MAX_VALUE;
+        touchedRight = touchedBottom = Integer.MIN_VALUE;
+        imagePixels = new WeakHashMap<PImage, int[]>();
+        scratch = new int[64];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setTranslate(int x, int y) {
+        translateX = x;
+        translateY = y;
+    }
+
+    public boolean transforms() {
+        return false;
+    }
+
+    /**
+     * The pixels keep their full precision, an ordered dither is applied as
+     * they are flushed to an RGB_565 frame.
+     */
+    public void setDither(boolean dither) {
+        this.dither = dither && (frame != null) && (frame.getConfig() == Config.RGB_565);
+    }
+
+    /**
+     * Only the translation is applied, rounded to whole pixels.
+     */
+    public void setTransform(int m00, int m01, int m02, int m10, int m11, int m12) {
+        setTranslate((m02 + 0x8000) >> 16, (m12 + 0x8000) >> 16);
+    }
+
+    public void setClip(int left, int top, int right, int bottom) {
+        clipLeft = Math.max(0, left);
+        clipTop = Math.max(0, top);
+        clipRight = Math.min(width, right);
+        clipBottom = Math.min(height, bottom);
+    }
+
+    public void setStrokeStyle(int weight, int cap, int join) {
+        strokeWeight = weight;
+        strokeCap = cap;
+    }
+
+    public boolean wideStrokes() {
+        return false;
+    }
+
+    public void background(int color) {
+        for (int y = clipTop; y < clipBottom; y++) {
+            fill(clipLeft, clipRight, y, color);
+        }
+    }
+
+    public void point(int x, int y, int color) {
+        if (strokeWeight <= 1) {
+            plot(x + translateX, y + translateY, color);
+        } else {
+            int half = strokeWeight >> 1;
+            if (strokeCap == PMIDlet.ROUND) {
+                fillEllipse(x - half, y - half, strokeWeight, strokeWeight, color);
+            } else {
+                fillRect(x - half, y - half, strokeWeight, strokeWeight, color);
+            }
+        }
+    }
+
+    public void points(int[] xy, int offset, int count, int color) {
+        for (int i = offset, end = offset + (count << 1); i < end; i += 2) {
+            point(xy[i], xy[i + 1], color);
+        }
+    }
+
+    public void line(int x1, int y1, int x2, int y2, int color) {
+        x1 += translateX;
+        y1 += translateY;
+        x2 += translateX;
+        y2 += translateY;
+        if (y1 == y2) {
+            //// horizontal lines are a single span, without the end point
+            if (x1 <= x2) {
+                span(x1, (x1 == x2) ? x1 + 1 : x2, y1, color, true);
+            } else {
+                span(x2 + 1, x1 + 1, y1, color, true);
+            }
+            return;
+        }
+        //// bresenham, without the end point
+        int dx = Math.abs(x2 - x1);
+        int dy = Math.abs(y2 - y1);
+        int sx = (x1 < x2) ? 1 : -1;
+        int sy = (y1 < y2) ? 1 : -1;
+        int error = dx - dy;
+        int e2;
+        while ((x1 != x2) || (y1 != y2)) {
+            plot(x1, y1, color);
+            e2 = error << 1;
+            if (e2 > -dy) {
+                error -= dy;
+                x1 += sx;
+            }
+            if (e2 < dx) {
+                error += dx;
+                y1 += sy;
+            }
+        }
+    }
+
+    public void lines(int[] xy, int offset, int count, int color) {
+        for (int i = offset, end = offset + (count << 2); i < end; i += 4) {
+            line(xy[i], xy[i + 1], xy[i + 2], xy[i + 3], color);
+        }
+    }
+
+    public void polyline(int[] xy, int startIndex, int endIndex, boolean closed, int color) {
+        for (int i = startIndex + 2; i <= endIndex; i += 2) {
+            line(xy[i - 2], xy[i - 1], xy[i], xy[i + 1], color);
+        }
+        if (closed) {
+            line(xy[endIndex], xy[endIndex + 1], xy[startIndex], xy[startIndex + 1], color);
+        }
+    }
+
+    public void span(int x1, int x2, int y, int color) {
+        if (x1 > x2) {
+            int swap = x1;
+            x1 = x2;
+            x2 = swap;
+        }
+        span(x1 + translateX, x2 + translateX, y + translateY, color, true);
+    }
+
+    public void fillRect(int x, int y, int width, int height, int color) {
+        x += translateX;
+        y += translateY;
+        int top = Math.max(y, clipTop);
+        int bottom = Math.min(y + height, clipBottom);
+        for (int row = top; row < bottom; row++) {
+            span(x, x + width, row, color, false);
+        }
+    }
+
+    public void strokeRect(int x, int y, int width, int height, int color) {
+        //// the stroke is centered on the outline, so its inside starts weight - half in
+        int weight = Math.max(1, strokeWeight);
+        int half = weight >> 1;
+        int outerLeft = x - half + translateX;
+        int outerTop = y - half + translateY;
+        int outerRight = x + width + weight - half + translateX;
+        int outerBottom = y + height + weight - half + translateY;
+        int innerLeft = outerLeft + weight;
+        int innerTop = outerTop + weight;
+        int innerRight = outerRight - weight;
+        int innerBottom = outerBottom - weight;
+        int top = Math.max(outerTop, clipTop);
+        int bottom = Math.min(outerBottom, clipBottom);
+        for (int row = top; row < bottom; row++) {
+            if ((row < innerTop) || (row >= innerBottom) || (innerLeft >= innerRight)) {
+                span(outerLeft, outerRight, row, color, false);
+            } else {
+                span(outerLeft, innerLeft, row, color, false);
+                span(innerRight, outerRight, row, color, false);
+            }
+        }
+    }
+
+    public void fillEllipse(int x, int y, int width, int height, int color) {
+        if ((width <= 0) || (height <= 0)) {
+            return;
+        }
+        x += translateX;
+        y += translateY;
+        float cx = x + width / 2f;
+        float cy = y + height / 2f;
+        float a = width / 2f;
+        float b = height / 2f;
+        int top = Math.max(y, clipTop);
+        int bottom = Math.min(y + height, clipBottom);
+        for (int row = top; row < bottom; row++) {
+            float half = halfWidth(a, b, row + 0.5f - cy);
+            if (half > 0) {
+                //// pixels whose centers fall inside
+                span((int) Math.ceil(cx - half - 0.5f), (int) Math.ceil(cx + half - 0.5f), row, color, false);
+            }
+        }
+    }
+
+    public void strokeEllipse(int x, int y, int width, int height, int color) {
+        x += translateX;
+        y += translateY;
+        int weight = Math.max(1, strokeWeight);
+        //// like strokeRect(), a one pixel outline covers the pixels to the right of and below the edge
+        float cx = x + width / 2f + 0.5f;
+        float cy = y + height / 2f + 0.5f;
+        float outerA = (width + weight) / 2f;
+        float outerB = (height + weight) / 2f;
+        float innerA = (width - weight) / 2f;
+        float innerB = (height - weight) / 2f;
+        int top = Math.max((int) Math.ceil(cy - outerB - 0.5f), clipTop);
+        int bottom = Math.min((int) Math.ceil(cy + outerB - 0.5f), clipBottom);
+        float dy, outer, inner;
+        int outerLeft, outerRight, innerLeft, innerRight;
+        for (int row = top; row < bottom; row++) {
+            dy = row + 0.5f - cy;
+            outer = halfWidth(outerA, outerB, dy);
+            if (outer <= 0) {
+                continue;
+            }
+            outerLeft = (int) Math.ceil(cx - outer - 0.5f);
+            outerRight = (int) Math.ceil(cx + outer - 0.5f);
+            inner = ((innerA > 0) && (innerB > 0)) ? halfWidth(innerA, innerB, dy) : 0;
+            if (inner > 0) {
+                innerLeft = (int) Math.ceil(cx - inner - 0.5f);
+                innerRight = (int) Math.ceil(cx + inner - 0.5f);
+                span(outerLeft, Math.max(innerLeft, outerLeft + 1), row, color, false);
+                span(Math.min(innerRight, outerRight - 1), outerRight, row, color, false);
+            } else {
+                span(outerLeft, outerRight, row, color, false);
+            }
+        }
+    }
+
+    public void image(PImage img, int x, int y) {
+        x += translateX;
+        y += translateY;
+        int left = Math.max(x, clipLeft);
+        int top = Math.max(y, clipTop);
+        int right = Math.min(x + img.width, clipRight);
+        int bottom = Math.min(y + img.height, clipBottom);
+        if ((left >= right) || (top >= bottom)) {
+            return;
+        }
+        int[] source;
+        int offset, stride;
+        if (img.mutable) {
+            //// only the visible part, the image may change before the next call
+            int w = right - left;
+            source = scratch((bottom - top) * w);
+            img.getPixels(source, 0, w, left - x, top - y, w, bottom - top);
+            offset = 0;
+            stride = w;
+        } else {
+            source = imagePixels.get(img);
+            if (source == null) {
+                source = new int[img.width * img.height];
+                img.getPixels(source, 0, img.width, 0, 0, img.width, img.height);
+                imagePixels.put(img, source);
+            }
+            offset = (top - y) * img.width + (left - x);
+            stride = img.width;
+        }
+        blit(source, offset, stride, left, top, right, bottom);
+    }
+
+    public void text(PFont font, String str, int x, int y, int align) {
+        if (font.font == null) {
+            //// bitmap font, blit the glyphs
+            if (align != PMIDlet.LEFT) {
+                int width = font.stringWidth(str);
+                if (align == PMIDlet.CENTER) {
+                    x -= width >> 1;
+                } else if (align == PMIDlet.RIGHT) {
+                    x -= width;
+                }
+            }
+            int index;
+            for (int i = 0, length = str.length(); i < length; i++) {
+                index = font.getIndex(str.charAt(i));
+                if (index >= 0) {
+                    image(font.images[index], x + font.leftExtent[index], y - font.topExtent[index]);
+                    x += font.setWidth[index];
+                } else if ((index = font.getIndex('i')) >= 0) {
+                    x += font.setWidth[index];
+                }
+            }
+        } else {
+            //// system font, let Android rasterize the string on its own and blend the result
+            int width = font.stringWidth(str) + 2;
+            int height = 2 * font.height + font.baseline;
+            int left = x - 1;
+            if (align == PMIDlet.CENTER) {
+                left -= width >> 1;
+            } else if (align == PMIDlet.RIGHT) {
+                left -= width;
+            }
+            int top = y - font.baseline - font.height;
+            Bitmap glyphs = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+            font.draw(new Canvas(glyphs), str, x - left, y - top, align);
+            int[] source = scratch(width * height);
+            glyphs.getPixels(source, 0, width, 0, 0, width, height);
+            glyphs.recycle();
+            left += translateX;
+            top += translateY;
+            int clippedLeft = Math.max(left, clipLeft);
+            int clippedTop = Math.max(top, clipTop);
+            int right = Math.min(left + width, clipRight);
+            int bottom = Math.min(top + height, clipBottom);
+            if ((clippedLeft < right) && (clippedTop < bottom)) {
+                blit(source, (clippedTop - top) * width + (clippedLeft - left), width, clippedLeft, clippedTop, right, bottom);
+            }
+        }
+    }
+
+    public void copy(PRenderer source, int left, int top, int right, int bottom) {
+        left = Math.max(left, 0);
+        top = Math.max(top, 0);
+        right = Math.min(right, width);
+        bottom = Math.min(bottom, height);
+        if ((left >= right) || (top >= bottom)) {
+            return;
+        }
+        if (source instanceof PSoftwareRenderer) {
+            int[] spixels = ((PSoftwareRenderer) source).pixels;
+            for (int row = top, index = top * width + left; row < bottom; row++, index += width) {
+                System.arraycopy(spixels, index, pixels, index, right - left);
+            }
+        } else {
+            source.getPixels(pixels, top * width + left, width, left, top, right - left, bottom - top);
+        }
+        touch(left, top, right, bottom);
+    }
+
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(this.pixels, (y + row) * this.width + x, pixels, offset + row * stride, width);
+        }
+    }
+
+    public void flush() {
+        if ((touchedLeft < touchedRight) && (frame != null)) {
+            if (dither) {
+                int w = touchedRight - touchedLeft;
+                int h = touchedBottom - touchedTop;
+                if ((dithered == null) || (dithered.length < (w * h))) {
+                    dithered = new int[w * h];
+                }
+                dither565(pixels, touchedTop * width + touchedLeft, width, dithered, w, touchedLeft, touchedTop, h);
+                frame.setPixels(dithered, 0, w, touchedLeft, touchedTop, w, h);
+            } else {
+                frame.setPixels(pixels, touchedTop * width + touchedLeft, width,
+                                touchedLeft, touchedTop, touchedRight - touchedLeft, touchedBottom - touchedTop);
+            }
+        }
+        touchedLeft = touchedTop = Integer.MAX_VALUE;
+        touchedRight = touchedBottom = Integer.MIN_VALUE;
+    }
+
+    //// 4x4 Bayer thresholds
+    private static final int[] BAYER = {
+        0,  8,  2, 10,
+        12, 4, 14,  6,
+        3, 11,  1,  9,
+        15, 7, 13,  5
+    };
+
+    /**
+     * Copies the rows of a rectangle at surface position (x, y) into out,
+     * adding to each channel the part of a 4x4 ordered dither threshold
+     * that RGB_565 truncates, 3 bits for red and blue and 2 for green.
+     */
+    private static void dither565(int[] src, int offset, int stride, int[] out, int width, int x, int y, int height) {
+        int pixel, r, g, b, threshold;
+        for (int row = 0, o = 0; row < height; row++) {
+            int rowThresholds = ((y + row) & 3) << 2;
+            for (int col = 0, s = offset + row * stride; col < width; col++, s++, o++) {
+                pixel = src[s];
+                threshold = BAYER[rowThresholds + ((x + col) & 3)];
+                r = Math.min(0xff, ((pixel >> 16) & 0xff) + (threshold >> 1));
+                g = Math.min(0xff, ((pixel >> 8) & 0xff) + (threshold >> 2));
+                b = Math.min(0xff, (pixel & 0xff) + (threshold >> 1));
+                out[o] = (pixel & 0xff000000) | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    /**
+     * Returns half the width of the ellipse with radii a and b at vertical
+     * distance dy from its center, or 0 outside it.
+     */
+    private static float halfWidth(float a, float b, float dy) {
+        float t = 1f - (dy * dy) / (b * b);
+        return (t > 0) ? a * (float) Math.sqrt(t) : 0;
+    }
+
+    /**
+     * Blends src over dst, both ARGB.
+     */
+    protected static int blend(int dst, int src) {
+        int alpha = src >>> 24;
+        if (alpha == 0xff) {
+            return src;
+        } else if (alpha == 0) {
+            return dst;
+        }
+        int inverse = 0xff - alpha;
+        int rb = ((((src & 0xff00ff) * alpha) + ((dst & 0xff00ff) * inverse)) >>> 8) & 0xff00ff;
+        int g = ((((src & 0xff00) * alpha) + ((dst & 0xff00) * inverse)) >>> 8) & 0xff00;
+        int a = alpha + (((dst >>> 24) * inverse) >> 8);
+        return (a << 24) | rb | g;
+    }
+
+    /**
+     * Draws a single pixel in frame coordinates.
+     */
+    private void plot(int x, int y, int color) {
+        if ((x >= clipLeft) && (x < clipRight) && (y >= clipTop) && (y < clipBottom)) {
+            int index = y * width + x;
+            pixels[index] = blend(pixels[index], color);
+            touch(x, y, x + 1, y + 1);
+        }
+    }
+
+    /**
+     * Fills row y from x1 up to x2 in frame coordinates, checking the row
+     * against the clip only if asked to.
+     */
+    private void span(int x1, int x2, int y, int color, boolean checkRow) {
+        if (checkRow && ((y < clipTop) || (y >= clipBottom))) {
+            return;
+        }
+        fill(Math.max(x1, clipLeft), Math.min(x2, clipRight), y, color);
+    }
+
+    private void fill(int x1, int x2, int y, int color) {
+        if (x1 >= x2) {
+            return;
+        }
+        int[] pixels = this.pixels;
+        int start = y * width;
+        int end = start + x2;
+        int alpha = color >>> 24;
+        if (alpha == 0xff) {
+            for (int i = start + x1; i < end; i++) {
+                pixels[i] = color;
+            }
+        } else if (alpha != 0) {
+            for (int i = start + x1; i < end; i++) {
+                pixels[i] = blend(pixels[i], color);
+            }
+        }
+        touch(x1, y, x2, y + 1);
+    }
+
+    private void blit(int[] source, int offset, int stride, int left, int top, int right, int bottom) {
+        int[] pixels = this.pixels;
+        int w = right - left;
+        int index, end;
+        for (int row = top; row < bottom; row++, offset += stride) {
+            index = row * width + left;
+            end = index + w;
+            for (int i = offset; index < end; index++, i++) {
+                pixels[index] = blend(pixels[index], source[i]);
+            }
+        }
+        touch(left, top, right, bottom);
+    }
+
+    private void touch(int left, int top, int right, int bottom) {
+        if (left < touchedLeft) touchedLeft = left;
+        if (top < touchedTop) touchedTop = top;
+        if (right > touchedRight) touchedRight = right;
+        if (bottom > touchedBottom) touchedBottom = bottom;
+    }
+
+    private int[] scratch(int length) {
+        if (scratch.length < length) {
+            scratch = new int[Math.max(length, scratch.length * 2)];
+        }
+        return scratch;
+    }
+}
@@ -0,0 +1,89 @@
+package processing.core;
+
+/**
+ * Android port of the Mobile Processing project - http://mobile.processing.org
+ *
+ * The author of Mobile Processing is Francis Li (mail@francisli.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+/**
+ * The view a PCanvas presents its frames in. Keeping the view apart from
+ * the canvas lets the canvas draw without Android's view classes.
+ */
+public class PSurface extends SurfaceView implements SurfaceHolder.Callback {
+
+	private final PCanvas canvas;
+
+	public PSurface(PMIDlet midlet, PCanvas canvas) {
+		super(midlet);
+		this.canvas = canvas;
+
+		setFocusable(true);
+
+		// register our interest in hearing about changes to our surface
+		getHolder().addCallback(this);
+	}
+
+	/**
+	 * Sets the pixel format of the surface from any thread.
+	 */
+	public void setPixelFormat(final int format) {
+		post(new Runnable() {
+			public void run() {
+				getHolder().setFormat(format);
+			}
+		});
+	}
+
+	/**
+	 * Standard window-focus override. Notice focus lost so we can pause on
+	 * focus lost. e.g. user switches to take a call.
+	 */
+	@Override
+	public void onWindowFocusChanged(boolean hasWindowFocus) {
+		canvas.windowFocusChanged(hasWindowFocus);
+	}
+
+	/* Callback invoked when the surface dimensions change. */
+	public void surfaceChanged(SurfaceHolder holder, int format, int width,
+			int height) {
+		canvas.surfaceChanged(width, height);
+	}
+
+	/*
+	 * Callback invoked when the Surface has been created and is ready to be
+	 * used.
+	 */
+	public void surfaceCreated(SurfaceHolder holder) {
+		canvas.surfaceCreated();
+	}
+
+	/*
+	 * Callback invoked when the Surface has been destroyed and must no longer
+	 * be touched.
+	 */
+	public void surfaceDestroyed(SurfaceHolder holder) {
+		canvas.surfaceDestroyed();
+	}
+
+}
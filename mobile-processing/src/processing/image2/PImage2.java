@@ -23,11 +23,20 @@ package processing.image2;
  * @author Paul Gregoire (mondain@gmail.com)
  */
 
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 import processing.core.PCanvas;
 import processing.core.PImage;
 import processing.core.PMIDlet;
+import processing.core.PPool;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Bitmap.Config;
 
 
 /**
@@ -36,8 +45,35 @@ import android.graphics.Canvas;
  */
 public class PImage2 extends PImage {    
 	
+    //// filters for scaled copies
+    public static final int NEAREST = 0;
+    public static final int BILINEAR = 1;
+    public static final int BOX = 2;
+    
+    //// filter modes
+    public static final int BLUR = 11;
+    public static final int GRAY = 12;
+    public static final int INVERT = 13;
+    public static final int POSTERIZE = 15;
+    public static final int THRESHOLD = 16;
+    public static final int ERODE = 17;
+    public static final int DILATE = 18;
+    public static final int BOX_BLUR = 19;
+    
+    //// copies and filters touching at least this many pixels are split into bands done in parallel
+    private static final int PARALLEL_PIXELS = 1 << 16;
+    
+    private static ExecutorService workers;
+    
     public int[] pixels;
     
+    //// native copy of the pixels for drawing with a Canvas, created when first drawn
+    //// and synced before a draw only over the rows changed since, none when top >= bottom
+    private int dirtyTop;
+    private int dirtyBottom;
+    //// frame format the native copy was created for, opaque images are kept in it
+    private int bitmapFormat;
+    
     public PImage2(PImage2 img) {
         super(img.width, img.height, true);
         pixels = new int[img.pixels.length];
@@ -45,7 +81,8 @@ public class PImage2 extends PImage {
     }
     
     public PImage2(PImage img) {
-        this(img.image);
+        this(img.width, img.height);
+        img.getPixels(pixels, 0, width, 0, 0, width, height);
     }
     
     public PImage2(Bitmap img) {
@@ -85,6 +122,7 @@ public class PImage2 extends PImage {
     
     public void set(int x, int y, int color) {
         pixels[y * width + x] = color;
+        dirty(y, y + 1);
     }
         
     public int[] get() {
@@ -113,6 +151,7 @@ public class PImage2 extends PImage {
         for (int i = 0, length = pixels.length; i < length; i++) {
             pixels[i] = ((alpha[i] & 0xff) << 24) | (pixels[i] & 0xffffff);
         }
+        dirty(0, height);
     }
 
     public void mask(PImage source) {
@@ -121,21 +160,92 @@ public class PImage2 extends PImage {
             spixels = ((PImage2) source).pixels;
         } else {
             spixels = new int[source.width * source.height];
-            source.image.getPixels(spixels, 0, source.width, 0, 0, source.width, source.height);            
+            source.getPixels(spixels, 0, source.width, 0, 0, source.width, source.height);
         }
         mask(spixels);
     }
     
+    /**
+     * Reads the screen into the pixels, from its top left corner. Only the
+     * part of the screen and the image that overlap is read.
+     */
     public void loadPixels() {
-    	PCanvas.buffer.getPixels(pixels, 0, width, 0, 0, width, height);
+        int width = Math.min(this.width, PCanvas.renderer.getWidth());
+        int height = Math.min(this.height, PCanvas.renderer.getHeight());
+        if ((width > 0) && (height > 0)) {
+            PCanvas.renderer.getPixels(pixels, 0, this.width, 0, 0, width, height);
+            dirty(0, height);
+        }
     }
     
+    /**
+     * Reads a region of the screen into a region of the pixels, scaling it
+     * if the sizes differ. Only the source rectangle is read. Unscaled
+     * reads go straight into the pixels and scaled ones through a pooled
+     * scratch array, with off screen pixels read as transparent black.
+     */
     public void loadPixels(int sx, int sy, int swidth, int sheight, int dx, int dy, int dwidth, int dheight) {
-        int width = PCanvas.buffer.getWidth();
-        int height = PCanvas.buffer.getHeight();
-        int[] spixels = new int[width * height];
-        PCanvas.buffer.getPixels(spixels, 0, width, 0, 0, width, height);
-        copy(spixels, width, sx, sy, swidth, sheight, dx, dy, dwidth, dheight);        
+        if (PCanvas.imageMode == PMIDlet.CORNERS) {
+            swidth = swidth - sx;
+            sheight = sheight - sy;
+            dwidth = dwidth - dx;
+            dheight = dheight - dy;
+        }
+        if ((swidth <= 0) || (sheight <= 0) || (dwidth <= 0) || (dheight <= 0)) {
+            return;
+        }
+        int screenWidth = PCanvas.renderer.getWidth();
+        int screenHeight = PCanvas.renderer.getHeight();
+        if ((swidth == dwidth) && (sheight == dheight)) {
+            //// the part of the region on screen and inside this image
+            int left = Math.max(0, Math.max(-sx, -dx));
+            int right = Math.min(swidth, Math.min(screenWidth - sx, width - dx));
+            int top = Math.max(0, Math.max(-sy, -dy));
+            int bottom = Math.min(sheight, Math.min(screenHeight - sy, height - dy));
+            if ((left < right) && (top < bottom)) {
+                PCanvas.renderer.getPixels(pixels, (dy + top) * width + dx + left, width,
+                                           sx + left, sy + top, right - left, bottom - top);
+                dirty(dy + top, dy + bottom);
+            }
+            return;
+        }
+        int left = Math.max(0, -sx);
+        int right = Math.min(swidth, screenWidth - sx);
+        int top = Math.max(0, -sy);
+        int bottom = Math.min(sheight, screenHeight - sy);
+        int[] spixels = PPool.ints(swidth * sheight);
+        if ((left != 0) || (top != 0) || (right != swidth) || (bottom != sheight)) {
+            Arrays.fill(spixels, 0);
+        }
+        if ((left < right) && (top < bottom)) {
+            PCanvas.renderer.getPixels(spixels, top * swidth + left, swidth,
+                                       sx + left, sy + top, right - left, bottom - top);
+        }
+        resample(spixels, swidth, 0, 0, swidth, sheight, dx, dy, dwidth, dheight, filter(swidth, sheight, dwidth, dheight));
+        PPool.recycle(spixels);
+    }
+    
+    /**
+     * Tells the image its pixels array was written to directly, so the
+     * changes show up when it is next drawn. set(), mask(), copy(),
+     * filter() and loadPixels() do this themselves.
+     */
+    public void updatePixels() {
+        dirty(0, height);
+    }
+    
+    /**
+     * Tells the image a rectangle of its pixels array was written to
+     * directly.
+     */
+    public void updatePixels(int x, int y, int width, int height) {
+        dirty(y, y + height);
+    }
+    
+    //// synchronized with bitmap(), pixels may be written by a decoding thread while drawn
+    private synchronized void dirty(int top, int bottom) {
+        dirtyTop = Math.min(dirtyTop, Math.max(0, top));
+        dirtyBottom = Math.max(dirtyBottom, Math.min(height, bottom));
     }
     
     public void copy(int sx, int sy, int swidth, int sheight, int dx, int dy, int dwidth, int dheight) {
@@ -153,11 +263,37 @@ public class PImage2 extends PImage {
             spixels = ((PImage2) source).pixels;
         } else {
             spixels = new int[source.width * source.height];
-            source.image.getPixels(spixels, 0, source.width, 0, 0, source.width, source.height);
+            source.getPixels(spixels, 0, source.width, 0, 0, source.width, source.height);
         }
         copy(spixels, source.width, sx, sy, swidth, sheight, dx, dy, dwidth, dheight);
     }
     
+    /**
+     * Copies a region of the source into a region of this image, scaling it
+     * with the given filter, NEAREST, BILINEAR or BOX. BOX averages every
+     * source pixel under a destination pixel and suits shrinking by a factor
+     * of two or more.
+     */
+    public void copy(PImage source, int sx, int sy, int swidth, int sheight, int dx, int dy, int dwidth, int dheight, int filter) {
+        if ((filter != NEAREST) && (filter != BILINEAR) && (filter != BOX)) {
+            throw new IllegalArgumentException("Invalid filter");
+        }
+        int[] spixels;
+        if (source instanceof PImage2) {
+            spixels = ((PImage2) source).pixels;
+        } else {
+            spixels = new int[source.width * source.height];
+            source.getPixels(spixels, 0, source.width, 0, 0, source.width, source.height);
+        }
+        if (PCanvas.imageMode == PMIDlet.CORNERS) {
+            swidth = swidth - sx;
+            sheight = sheight - sy;
+            dwidth = dwidth - dx;
+            dheight = dheight - dy;
+        }
+        resample(spixels, source.width, sx, sy, swidth, sheight, dx, dy, dwidth, dheight, filter);
+    }
+    
     private void copy(int[] source, int scanlength, int sx, int sy, int swidth, int sheight, int dx, int dy, int dwidth, int dheight) {
         if (PCanvas.imageMode == PMIDlet.CORNERS) {
             swidth = swidth - sx;
@@ -165,31 +301,593 @@ public class PImage2 extends PImage {
             dwidth = dwidth - dx;
             dheight = dheight - dy;
         }
-        if (dwidth == swidth) {
-            int scaleY = sy * scanlength + sx;
-            dy = dy * width + dx;
-            for (int y = 0; y < dheight; y++) {
-                System.arraycopy(source, scaleY, pixels, dy, swidth);
-                dy += width;
-                scaleY = (sy + y * sheight / dheight) * scanlength + sx;
+        resample(source, scanlength, sx, sy, swidth, sheight, dx, dy, dwidth, dheight, filter(swidth, sheight, dwidth, dheight));
+    }
+    
+    private static int filter(int swidth, int sheight, int dwidth, int dheight) {
+        //// smooth copies average when shrinking to half or less, and interpolate otherwise
+        if (!PCanvas.imageSmooth) {
+            return NEAREST;
+        }
+        return ((swidth >= (dwidth << 1)) || (sheight >= (dheight << 1))) ? BOX : BILINEAR;
+    }
+    
+    private void resample(int[] source, int scanlength, int sx, int sy, int swidth, int sheight, int dx, int dy, int dwidth, int dheight, int filter) {
+        if ((swidth <= 0) || (sheight <= 0) || (dwidth <= 0) || (dheight <= 0)) {
+            return;
+        }
+        //// only the part of the destination inside this image is written
+        int left = Math.max(0, -dx);
+        int right = Math.min(dwidth, width - dx);
+        int top = Math.max(0, -dy);
+        int bottom = Math.min(dheight, height - dy);
+        if ((left >= right) || (top >= bottom)) {
+            return;
+        }
+        dirty(dy + top, dy + bottom);
+        if ((swidth == dwidth) && (sheight == dheight)) {
+            for (int y = top; y < bottom; y++) {
+                System.arraycopy(source, (sy + y) * scanlength + sx + left, pixels, (dy + y) * width + dx + left, right - left);
+            }
+            return;
+        }
+        Resampler resampler = new Resampler(source, scanlength, sx, sy, swidth, sheight,
+                                            pixels, width, dx, dy, dwidth, dheight, filter);
+        resampler.left = left;
+        resampler.right = right;
+        bands(resampler, top, bottom, (right - left) * (bottom - top));
+    }
+    
+    /**
+     * Work done on a range of rows, or of columns, independently of the
+     * rest.
+     */
+    private static abstract class Band {
+        abstract void rows(int from, int to);
+    }
+    
+    /**
+     * Runs the band over rows from up to to. If it touches enough pixels
+     * the rows are split into one band per core, the calling thread taking
+     * the first.
+     */
+    private static void bands(final Band band, int top, int bottom, int pixels) {
+        int bands = Math.min(Runtime.getRuntime().availableProcessors(), bottom - top);
+        if ((bands < 2) || (pixels < PARALLEL_PIXELS)) {
+            band.rows(top, bottom);
+            return;
+        }
+        Future<?>[] pending = new Future<?>[bands - 1];
+        int rows = (bottom - top + bands - 1) / bands;
+        for (int i = 1; i < bands; i++) {
+            final int from = Math.min(bottom, top + i * rows);
+            final int to = Math.min(bottom, from + rows);
+            pending[i - 1] = workers().submit(new Runnable() {
+                public void run() {
+                    band.rows(from, to);
+                }
+            });
+        }
+        Throwable failure = null;
+        try {
+            band.rows(top, Math.min(bottom, top + rows));
+        } finally {
+            //// the bands share their arrays, so wait for all of them even if this one failed
+            boolean interrupted = false;
+            for (int i = 0; i < pending.length; i++) {
+                while (true) {
+                    try {
+                        pending[i].get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e.getCause();
+                        }
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+    
+    private static synchronized ExecutorService workers() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() - 1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PImage2 worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return workers;
+    }
+    
+    /**
+     * Scales a region of source pixels into a region of destination pixels.
+     * Source positions are stepped along each axis once per call with a 16.16
+     * fixed point DDA and kept in tables, so rows are resampled without
+     * divisions and bands of rows can be done in parallel.
+     */
+    private static class Resampler extends Band {
+        
+        private final int[] source;
+        private final int scanlength;
+        private final int[] dest;
+        private final int stride;
+        private final int dx;
+        private final int dy;
+        private final int filter;
+        //// destination columns written, relative to dx
+        private int left;
+        private int right;
+        
+        //// NEAREST: source index per column and row
+        //// BILINEAR: first source index and 8 bit weight of the second, the second index is the next one or the same at the edge
+        //// BOX: first source index and count of source pixels per column and row
+        private final int[] xIndex;
+        private final int[] xWeight;
+        private final int[] yIndex;
+        private final int[] yWeight;
+        private final int sxMax;
+        private final int syMax;
+        
+        Resampler(int[] source, int scanlength, int sx, int sy, int swidth, int sheight,
+                  int[] dest, int stride, int dx, int dy, int dwidth, int dheight, int filter) {
+            this.source = source;
+            this.scanlength = scanlength;
+            this.dest = dest;
+            this.stride = stride;
+            this.dx = dx;
+            this.dy = dy;
+            this.filter = filter;
+            sxMax = sx + swidth - 1;
+            syMax = sy + sheight - 1;
+            xIndex = new int[dwidth];
+            xWeight = new int[dwidth];
+            yIndex = new int[dheight];
+            yWeight = new int[dheight];
+            axis(sx, swidth, dwidth, xIndex, xWeight);
+            axis(sy, sheight, dheight, yIndex, yWeight);
+        }
+        
+        private void axis(int start, int length, int count, int[] index, int[] weight) {
+            long step = ((long) length << 16) / count;
+            long position;
+            int i;
+            switch (filter) {
+                case NEAREST:
+                    //// sample at the center of each destination pixel
+                    position = step >> 1;
+                    for (i = 0; i < count; i++, position += step) {
+                        index[i] = start + Math.min(length - 1, (int) (position >> 16));
+                    }
+                    break;
+                case BILINEAR:
+                    position = (step >> 1) - 0x8000;
+                    long last = (long) (length - 1) << 16;
+                    long p;
+                    for (i = 0; i < count; i++, position += step) {
+                        p = Math.max(0, Math.min(last, position));
+                        index[i] = start + (int) (p >> 16);
+                        weight[i] = (int) (p >> 8) & 0xff;
+                    }
+                    break;
+                case BOX:
+                    //// each destination pixel covers the source pixels from its left edge up to the next one's
+                    position = 0;
+                    int from, to;
+                    for (i = 0; i < count; i++, position += step) {
+                        from = Math.min(length - 1, (int) (position >> 16));
+                        to = (i == count - 1) ? length : (int) ((position + step) >> 16);
+                        index[i] = start + from;
+                        weight[i] = Math.max(1, Math.min(length, to) - from);
+                    }
+                    break;
+            }
+        }
+        
+        void rows(int from, int to) {
+            switch (filter) {
+                case NEAREST:
+                    nearest(from, to);
+                    break;
+                case BILINEAR:
+                    bilinear(from, to);
+                    break;
+                case BOX:
+                    box(from, to);
+                    break;
+            }
+        }
+        
+        private void nearest(int from, int to) {
+            int[] source = this.source, dest = this.dest, xIndex = this.xIndex;
+            int row, o;
+            for (int y = from; y < to; y++) {
+                row = yIndex[y] * scanlength;
+                o = (dy + y) * stride + dx;
+                for (int x = left; x < right; x++) {
+                    dest[o + x] = source[row + xIndex[x]];
+                }
+            }
+        }
+        
+        private void bilinear(int from, int to) {
+            int[] source = this.source, dest = this.dest, xIndex = this.xIndex, xWeight = this.xWeight;
+            int row0, row1, o, x0, x1, fx, fy, top, bottom;
+            for (int y = from; y < to; y++) {
+                row0 = yIndex[y] * scanlength;
+                row1 = (yIndex[y] < syMax) ? row0 + scanlength : row0;
+                fy = yWeight[y];
+                o = (dy + y) * stride + dx;
+                for (int x = left; x < right; x++) {
+                    x0 = xIndex[x];
+                    x1 = (x0 < sxMax) ? x0 + 1 : x0;
+                    fx = xWeight[x];
+                    top = lerp(source[row0 + x0], source[row0 + x1], fx);
+                    bottom = lerp(source[row1 + x0], source[row1 + x1], fx);
+                    dest[o + x] = lerp(top, bottom, fy);
+                }
+            }
+        }
+        
+        /**
+         * Interpolates all four channels of two ARGB colors, two channels
+         * at a time, by an 8 bit weight.
+         */
+        private static int lerp(int c0, int c1, int f) {
+            int g = 256 - f;
+            int rb = (((c0 & 0xff00ff) * g + (c1 & 0xff00ff) * f) >>> 8) & 0xff00ff;
+            int ag = (((c0 >>> 8) & 0xff00ff) * g + ((c1 >>> 8) & 0xff00ff) * f) & 0xff00ff00;
+            return ag | rb;
+        }
+        
+        private void box(int from, int to) {
+            int[] source = this.source, dest = this.dest, xIndex = this.xIndex, xWeight = this.xWeight;
+            int row, o, x0, columns, rows, count, a, r, g, b, c, i, j, s;
+            for (int y = from; y < to; y++) {
+                row = yIndex[y] * scanlength;
+                rows = yWeight[y];
+                o = (dy + y) * stride + dx;
+                for (int x = left; x < right; x++) {
+                    x0 = xIndex[x];
+                    columns = xWeight[x];
+                    a = r = g = b = 0;
+                    for (j = 0, s = row + x0; j < rows; j++, s += scanlength) {
+                        for (i = 0; i < columns; i++) {
+                            c = source[s + i];
+                            a += c >>> 24;
+                            r += (c >> 16) & 0xff;
+                            g += (c >> 8) & 0xff;
+                            b += c & 0xff;
+                        }
+                    }
+                    //// divide by the pixel count with one reciprocal, rounded
+                    count = rows * columns;
+                    c = (1 << 24) / count;
+                    dest[o + x] = ((int) (((long) a * c + 0x800000) >> 24) << 24) |
+                                  ((int) (((long) r * c + 0x800000) >> 24) << 16) |
+                                  ((int) (((long) g * c + 0x800000) >> 24) << 8) |
+                                  (int) (((long) b * c + 0x800000) >> 24);
+                }
+            }
+        }
+    }
+    
+    public void filter(int mode) {
+        switch (mode) {
+            case BLUR:
+            case BOX_BLUR:
+                filter(mode, 1);
+                break;
+            case THRESHOLD:
+                filter(mode, 128);
+                break;
+            case POSTERIZE:
+                throw new IllegalArgumentException("Use filter(POSTERIZE, levels)");
+            default:
+                filter(mode, 0);
+                break;
+        }
+    }
+    
+    /**
+     * Applies a filter to the pixels. BLUR is a gaussian blur approximated
+     * by three box blurs, and BOX_BLUR a single one, param being the
+     * radius. THRESHOLD turns pixels at least as bright as param, from 0 to
+     * 255, white and the rest black. POSTERIZE limits each channel to param
+     * levels, from 2 to 255. GRAY, INVERT, ERODE and DILATE take no param.
+     * ERODE and DILATE spread the darkest and the brightest pixel of each
+     * neighborhood. Blurs take the same time whatever the radius.
+     */
+    public void filter(int mode, int param) {
+        switch (mode) {
+            case BLUR:
+                blur(param, 3);
+                break;
+            case BOX_BLUR:
+                blur(param, 1);
+                break;
+            case GRAY:
+            case INVERT:
+            case THRESHOLD:
+            case POSTERIZE:
+                pointFilter(mode, param);
+                break;
+            case ERODE:
+            case DILATE:
+                morphology(mode == DILATE);
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid filter mode");
+        }
+        dirty(0, height);
+    }
+    
+    private static int luminance(int color) {
+        return (77 * ((color >> 16) & 0xff) + 151 * ((color >> 8) & 0xff) + 28 * (color & 0xff)) >> 8;
+    }
+    
+    private void pointFilter(final int mode, final int param) {
+        final int[] pixels = this.pixels;
+        final int width = this.width;
+        final int[] levels;
+        if (mode == POSTERIZE) {
+            if ((param < 2) || (param > 255)) {
+                throw new IllegalArgumentException("Posterize levels must be between 2 and 255");
+            }
+            levels = new int[256];
+            for (int i = 0; i < 256; i++) {
+                levels[i] = ((i * param) >> 8) * 255 / (param - 1);
             }
         } else {
-            int scaleY = sy * scanlength + sx;
-            for (int y = 0; y < dheight; y++) {
-                int di = (dy + y) * width + dx;
-                int si = scaleY;
-                for (int x = 0; x < dwidth; x++) {
-                    pixels[di] = source[si];
-                    di++;
-                    si = scaleY + x * swidth / dwidth;
+            levels = null;
+        }
+        bands(new Band() {
+            void rows(int from, int to) {
+                int i = from * width, end = to * width, c, l;
+                switch (mode) {
+                    case GRAY:
+                        for (; i < end; i++) {
+                            c = pixels[i];
+                            l = luminance(c);
+                            pixels[i] = (c & 0xff000000) | (l << 16) | (l << 8) | l;
+                        }
+                        break;
+                    case INVERT:
+                        for (; i < end; i++) {
+                            pixels[i] ^= 0xffffff;
+                        }
+                        break;
+                    case THRESHOLD:
+                        for (; i < end; i++) {
+                            c = pixels[i];
+                            pixels[i] = (c & 0xff000000) | ((luminance(c) >= param) ? 0xffffff : 0);
+                        }
+                        break;
+                    case POSTERIZE:
+                        for (; i < end; i++) {
+                            c = pixels[i];
+                            pixels[i] = (c & 0xff000000) | (levels[(c >> 16) & 0xff] << 16) |
+                                        (levels[(c >> 8) & 0xff] << 8) | levels[c & 0xff];
+                        }
+                        break;
                 }
-                scaleY = (sy + y * sheight / dheight) * scanlength + sx;
             }
+        }, 0, height, pixels.length);
+    }
+    
+    /**
+     * Blurs with passes of a separable box filter. Each pass runs a sum
+     * along every row into a scratch image and then down every column back
+     * into the pixels, adding the pixel entering the window and removing
+     * the one leaving it, with the edge pixels repeated outside the image.
+     */
+    private void blur(int radius, int passes) {
+        if (radius < 1) {
+            return;
+        }
+        //// past the image the window only repeats edge pixels, the limit keeps the sums in range
+        final int r = Math.min(radius, 1 << 20);
+        //// 32 bit reciprocal of the window size
+        final long scale = ((1L << 32) + r) / ((r << 1) + 1);
+        final int[] pixels = this.pixels;
+        final int[] scratch = PPool.ints(pixels.length);
+        final int width = this.width;
+        final int height = this.height;
+        Band across = new Band() {
+            void rows(int from, int to) {
+                int last = width - 1, row, a, rr, g, b, c, i, x;
+                for (int y = from; y < to; y++) {
+                    row = y * width;
+                    a = rr = g = b = 0;
+                    for (i = -r; i <= r; i++) {
+                        c = pixels[row + Math.max(0, Math.min(last, i))];
+                        a += c >>> 24;
+                        rr += (c >> 16) & 0xff;
+                        g += (c >> 8) & 0xff;
+                        b += c & 0xff;
+                    }
+                    for (x = 0; x < width; x++) {
+                        scratch[row + x] = average(a, rr, g, b, scale);
+                        c = pixels[row + Math.min(last, x + r + 1)];
+                        a += c >>> 24;
+                        rr += (c >> 16) & 0xff;
+                        g += (c >> 8) & 0xff;
+                        b += c & 0xff;
+                        c = pixels[row + Math.max(0, x - r)];
+                        a -= c >>> 24;
+                        rr -= (c >> 16) & 0xff;
+                        g -= (c >> 8) & 0xff;
+                        b -= c & 0xff;
+                    }
+                }
+            }
+        };
+        //// columns are summed a row at a time, so memory is read in order
+        Band down = new Band() {
+            void rows(int from, int to) {
+                int columns = to - from, last = height - 1, c, i, j, k, y, row;
+                int[] sums = PPool.ints(columns << 2);
+                try {
+                    Arrays.fill(sums, 0);
+                    for (i = -r; i <= r; i++) {
+                        row = Math.max(0, Math.min(last, i)) * width + from;
+                        for (j = 0, k = 0; j < columns; j++, k += 4) {
+                            c = scratch[row + j];
+                            sums[k] += c >>> 24;
+                            sums[k + 1] += (c >> 16) & 0xff;
+                            sums[k + 2] += (c >> 8) & 0xff;
+                            sums[k + 3] += c & 0xff;
+                        }
+                    }
+                    int enter, leave;
+                    for (y = 0; y < height; y++) {
+                        row = y * width + from;
+                        enter = Math.min(last, y + r + 1) * width + from;
+                        leave = Math.max(0, y - r) * width + from;
+                        for (j = 0, k = 0; j < columns; j++, k += 4) {
+                            pixels[row + j] = average(sums[k], sums[k + 1], sums[k + 2], sums[k + 3], scale);
+                            c = scratch[enter + j];
+                            sums[k] += c >>> 24;
+                            sums[k + 1] += (c >> 16) & 0xff;
+                            sums[k + 2] += (c >> 8) & 0xff;
+                            sums[k + 3] += c & 0xff;
+                            c = scratch[leave + j];
+                            sums[k] -= c >>> 24;
+                            sums[k + 1] -= (c >> 16) & 0xff;
+                            sums[k + 2] -= (c >> 8) & 0xff;
+                            sums[k + 3] -= c & 0xff;
+                        }
+                    }
+                } finally {
+                    PPool.recycle(sums);
+                }
+            }
+        };
+        try {
+            for (int pass = 0; pass < passes; pass++) {
+                bands(across, 0, height, pixels.length);
+                bands(down, 0, width, pixels.length);
+            }
+        } finally {
+            PPool.recycle(scratch);
+        }
+    }
+    
+    private static int average(int a, int r, int g, int b, long scale) {
+        a = (int) ((a * scale + 0x80000000L) >>> 32);
+        r = (int) ((r * scale + 0x80000000L) >>> 32);
+        g = (int) ((g * scale + 0x80000000L) >>> 32);
+        b = (int) ((b * scale + 0x80000000L) >>> 32);
+        return (Math.min(a, 0xff) << 24) | (Math.min(r, 0xff) << 16) | (Math.min(g, 0xff) << 8) | Math.min(b, 0xff);
+    }
+    
+    /**
+     * Replaces every pixel with the brightest, or darkest, of itself and its
+     * four neighbors, compared by luminance.
+     */
+    private void morphology(final boolean brightest) {
+        final int[] pixels = this.pixels;
+        final int[] source = PPool.ints(pixels.length);
+        final int width = this.width;
+        final int height = this.height;
+        System.arraycopy(pixels, 0, source, 0, pixels.length);
+        try {
+            bands(new Band() {
+                void rows(int from, int to) {
+                    int last = width - 1, i, x, up, down, best, c;
+                    for (int y = from; y < to; y++) {
+                        i = y * width;
+                        up = (y > 0) ? -width : 0;
+                        down = (y < height - 1) ? width : 0;
+                        for (x = 0; x < width; x++, i++) {
+                            best = source[i];
+                            c = source[(x > 0) ? i - 1 : i];
+                            best = pick(best, c, brightest);
+                            c = source[(x < last) ? i + 1 : i];
+                            best = pick(best, c, brightest);
+                            best = pick(best, source[i + up], brightest);
+                            best = pick(best, source[i + down], brightest);
+                            pixels[i] = best;
+                        }
+                    }
+                }
+            }, 0, height, pixels.length);
+        } finally {
+            PPool.recycle(source);
         }
     }
     
+    private static int pick(int best, int color, boolean brightest) {
+        int l = luminance(color), b = luminance(best);
+        return (brightest ? (l > b) : (l < b)) ? color : best;
+    }
+    
     protected void draw(Canvas g, int x, int y) {
-    	g.drawBitmap(pixels, 0, width, x, y, width, height, true, null);
+    	g.drawBitmap(bitmap(), x, y, null);
+    }
+    
+    /**
+     * Returns the native copy of the pixels, first uploading the rows
+     * changed since the last call. Like PImage(width, height, color), an
+     * opaque image is kept in the frame format, so it is created again
+     * when the frame format changes or rows with alpha are written.
+     */
+    protected Bitmap bitmap() {
+        int top, bottom;
+        synchronized (this) {
+            top = dirtyTop;
+            bottom = dirtyBottom;
+            dirtyTop = height;
+            dirtyBottom = 0;
+        }
+        if ((image != null) && (image.getConfig() == Config.RGB_565) && !opaque(top, bottom)) {
+            image = null;
+        }
+        if ((image == null) || (bitmapFormat != PCanvas.renderFormat)) {
+            bitmapFormat = PCanvas.renderFormat;
+            if ((bitmapFormat == PMIDlet.RGB_565) && opaque(0, height)) {
+                image = Bitmap.createBitmap(width, height, Config.RGB_565);
+            } else {
+                image = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+            }
+            top = 0;
+            bottom = height;
+        }
+        if (top < bottom) {
+            image.setPixels(pixels, top * width, width, 0, top, width, bottom - top);
+        }
+        return image;
+    }
+    
+    private boolean opaque(int top, int bottom) {
+        int[] pixels = this.pixels;
+        for (int i = top * width, end = bottom * width; i < end; i++) {
+            if ((pixels[i] >>> 24) != 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(this.pixels, (y + row) * this.width + x, pixels, offset + row * stride, width);
+        }
     }
     
 }
@@ -0,0 +1,517 @@
+package processing.image2;
+
+/**
+ * Android port of the Mobile Processing project - http://mobile.processing.org
+ * 
+ * The author of Mobile Processing is Francis Li (mail@francisli.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Decodes an image from a stream as its bytes arrive, without holding the
+ * encoded image in memory. PNG images are decoded a row at a time and
+ * reported as they complete: the rows of plain images top to bottom, and
+ * for interlaced ones each of the seven passes over the whole image, its
+ * pixels spread over the blocks later passes fill in. Other formats are
+ * decoded by BitmapFactory straight from the stream and reported once.
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class PImageDecoder {
+
+    /**
+     * Receives the image while it is decoded.
+     */
+    public interface Progress {
+        /**
+         * Called each time rows from top up to bottom of the image have
+         * been decoded. The image is the same object on every call and is
+         * written to by the decoding thread.
+         */
+        public void rows(PImage2 image, int top, int bottom);
+    }
+
+    /**
+     * Largest number of pixels a PNG image may have, 16M or 64MB of pixels.
+     * Larger headers are rejected before anything is allocated for them.
+     */
+    public static final int MAX_PIXELS = 1 << 24;
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504c5445;
+    private static final int TRNS = 0x74524e53;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454e44;
+
+    //// Adam7 passes: first column and row, steps between pixels, and the block each pixel covers
+    private static final int[] PASS_X = { 0, 4, 0, 2, 0, 1, 0 };
+    private static final int[] PASS_Y = { 0, 0, 4, 0, 2, 0, 1 };
+    private static final int[] PASS_DX = { 8, 8, 4, 4, 2, 2, 1 };
+    private static final int[] PASS_DY = { 8, 8, 8, 4, 4, 2, 2 };
+    private static final int[] PASS_W = { 8, 4, 4, 2, 2, 1, 1 };
+    private static final int[] PASS_H = { 8, 8, 4, 4, 2, 2, 1 };
+
+    private final DataInputStream in;
+    private final Progress progress;
+
+    private PImage2 image;
+    private int width;
+    private int height;
+    private int depth;
+    private int colorType;
+    private boolean interlaced;
+    private int channels;
+    //// bytes per pixel used by the filters, at least 1
+    private int bpp;
+
+    private int[] palette;
+    //// sample value drawn transparent for gray and RGB images, -1 if none
+    private int transparentGray = -1;
+    private int transparentRGB = -1;
+
+    private Inflater inflater;
+    private byte[] input;
+    private byte[] row;
+    private byte[] previous;
+    //// bytes of the current row received, the filter type byte included
+    private int filled;
+    private int pass;
+    private int passWidth;
+    private int passRow;
+    private int passRows;
+    private int reported;
+
+    private PImageDecoder(InputStream in, Progress progress) {
+        this.in = new DataInputStream(in);
+        this.progress = progress;
+    }
+
+    /**
+     * Decodes an image, reporting its rows as they are decoded if progress
+     * is not null. Returns the whole image. A PNG image that ends early
+     * throws an EOFException, after the rows that arrived were reported.
+     */
+    public static PImage2 decode(InputStream in, Progress progress) throws IOException {
+        byte[] signature = new byte[SIGNATURE.length];
+        int length = 0, read;
+        while (length < signature.length) {
+            read = in.read(signature, length, signature.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        boolean png = (length == signature.length);
+        for (int i = 0; png && (i < length); i++) {
+            png = (signature[i] == SIGNATURE[i]);
+        }
+        if (!png) {
+            //// put the bytes already read back in front of the stream
+            Bitmap bitmap = BitmapFactory.decodeStream(
+                new SequenceInputStream(new ByteArrayInputStream(signature, 0, length), in));
+            if (bitmap == null) {
+                throw new IOException("Unsupported image format");
+            }
+            PImage2 image = new PImage2(bitmap);
+            bitmap.recycle();
+            if (progress != null) {
+                progress.rows(image, 0, image.height);
+            }
+            return image;
+        }
+        return new PImageDecoder(in, progress).decode();
+    }
+
+    private PImage2 decode() throws IOException {
+        int length, type;
+        try {
+            while (true) {
+                length = in.readInt();
+                type = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Invalid PNG chunk");
+                }
+                switch (type) {
+                    case IHDR:
+                        header(length);
+                        break;
+                    case PLTE:
+                        palette(length);
+                        break;
+                    case TRNS:
+                        transparency(length);
+                        break;
+                    case IDAT:
+                        if (image == null) {
+                            throw new IOException("PNG data before header");
+                        }
+                        data(length);
+                        break;
+                    case IEND:
+                        if (image == null) {
+                            throw new IOException("PNG without header");
+                        }
+                        return image;
+                    default:
+                        skip(length);
+                        break;
+                }
+                //// the CRC, the stream already being checked by zlib
+                skip(4);
+            }
+        } catch (EOFException e) {
+            throw new EOFException("Truncated PNG image");
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private void header(int length) throws IOException {
+        width = in.readInt();
+        height = in.readInt();
+        depth = in.readUnsignedByte();
+        colorType = in.readUnsignedByte();
+        int compression = in.readUnsignedByte();
+        int filter = in.readUnsignedByte();
+        interlaced = (in.readUnsignedByte() == 1);
+        skip(length - 13);
+        switch (colorType) {
+            case 0:
+            case 3:
+                channels = 1;
+                break;
+            case 2:
+                channels = 3;
+                break;
+            case 4:
+                channels = 2;
+                break;
+            case 6:
+                channels = 4;
+                break;
+            default:
+                throw new IOException("Invalid PNG color type " + colorType);
+        }
+        if ((width <= 0) || (height <= 0) || (compression != 0) || (filter != 0)
+            || ((depth != 1) && (depth != 2) && (depth != 4) && (depth != 8) && (depth != 16))) {
+            throw new IOException("Unsupported PNG header");
+        }
+        if ((long) width * height > MAX_PIXELS) {
+            throw new IOException("PNG image too large: " + width + "x" + height);
+        }
+        bpp = Math.max(1, (channels * depth) >> 3);
+        image = new PImage2(width, height);
+        inflater = new Inflater();
+        input = new byte[8192];
+        int rowBytes = rowBytes(width);
+        row = new byte[rowBytes + 1];
+        previous = new byte[rowBytes + 1];
+        pass = interlaced ? -1 : 0;
+        passWidth = width;
+        passRows = height;
+        if (interlaced) {
+            nextPass();
+        }
+    }
+
+    private void palette(int length) throws IOException {
+        palette = new int[256];
+        for (int i = 0; i < length / 3; i++) {
+            palette[i] = 0xff000000 | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        }
+        skip(length % 3);
+    }
+
+    private void transparency(int length) throws IOException {
+        if (colorType == 3) {
+            for (int i = 0; i < length; i++) {
+                int alpha = in.readUnsignedByte();
+                if ((palette != null) && (i < 256)) {
+                    palette[i] = (alpha << 24) | (palette[i] & 0xffffff);
+                }
+            }
+        } else if ((colorType == 0) && (length >= 2)) {
+            transparentGray = in.readUnsignedShort();
+            skip(length - 2);
+        } else if ((colorType == 2) && (length >= 6)) {
+            transparentRGB = (sample16(in.readUnsignedShort()) << 16) | (sample16(in.readUnsignedShort()) << 8) | sample16(in.readUnsignedShort());
+            skip(length - 6);
+        } else {
+            skip(length);
+        }
+    }
+
+    private int sample16(int value) {
+        return (depth == 16) ? (value >> 8) : value;
+    }
+
+    private void data(int length) throws IOException {
+        int read;
+        try {
+            while (length > 0) {
+                read = in.read(input, 0, Math.min(length, input.length));
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                length -= read;
+                inflater.setInput(input, 0, read);
+                inflate();
+                //// one report for each read, as the network delivered it
+                report();
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt PNG data");
+        }
+    }
+
+    private void inflate() throws DataFormatException {
+        int inflated, rowLength;
+        while ((pass < 7) && !inflater.finished()) {
+            rowLength = rowBytes(passWidth) + 1;
+            inflated = inflater.inflate(row, filled, rowLength - filled);
+            if (inflated == 0) {
+                if (inflater.needsInput() || inflater.needsDictionary()) {
+                    return;
+                }
+                continue;
+            }
+            filled += inflated;
+            if (filled == rowLength) {
+                unfilter(rowLength);
+                store();
+                byte[] swap = previous;
+                previous = row;
+                row = swap;
+                filled = 0;
+                passRow++;
+                if (passRow == passRows) {
+                    if (interlaced) {
+                        report();
+                        nextPass();
+                    } else {
+                        pass = 7;
+                    }
+                }
+            }
+        }
+    }
+
+    private void nextPass() {
+        //// passes with no pixels in small images are skipped
+        do {
+            pass++;
+            if (pass == 7) {
+                return;
+            }
+            passWidth = (width - PASS_X[pass] + PASS_DX[pass] - 1) / PASS_DX[pass];
+            passRows = (height - PASS_Y[pass] + PASS_DY[pass] - 1) / PASS_DY[pass];
+        } while ((passWidth <= 0) || (passRows <= 0));
+        passRow = 0;
+        Arrays.fill(previous, (byte) 0);
+        reported = 0;
+    }
+
+    private int rowBytes(int pixels) {
+        return (pixels * channels * depth + 7) >> 3;
+    }
+
+    private void unfilter(int length) throws DataFormatException {
+        byte[] row = this.row;
+        byte[] previous = this.previous;
+        //// the first row of an image or pass has nothing above it
+        boolean first = (passRow == 0);
+        int bpp = this.bpp, a, b, c, p, pa, pb, pc, i;
+        switch (row[0]) {
+            case 0:
+                break;
+            case 1:
+                for (i = 1 + bpp; i < length; i++) {
+                    row[i] += row[i - bpp];
+                }
+                break;
+            case 2:
+                if (!first) {
+                    for (i = 1; i < length; i++) {
+                        row[i] += previous[i];
+                    }
+                }
+                break;
+            case 3:
+                for (i = 1; i < length; i++) {
+                    a = (i > bpp) ? (row[i - bpp] & 0xff) : 0;
+                    b = first ? 0 : (previous[i] & 0xff);
+                    row[i] += (a + b) >> 1;
+                }
+                break;
+            case 4:
+                for (i = 1; i < length; i++) {
+                    a = (i > bpp) ? (row[i - bpp] & 0xff) : 0;
+                    b = first ? 0 : (previous[i] & 0xff);
+                    c = ((i > bpp) && !first) ? (previous[i - bpp] & 0xff) : 0;
+                    p = a + b - c;
+                    pa = Math.abs(p - a);
+                    pb = Math.abs(p - b);
+                    pc = Math.abs(p - c);
+                    row[i] += ((pa <= pb) && (pa <= pc)) ? a : ((pb <= pc) ? b : c);
+                }
+                break;
+            default:
+                throw new DataFormatException("Invalid PNG filter " + row[0]);
+        }
+    }
+
+    /**
+     * Converts the current row to colors and writes it into the image.
+     */
+    private void store() {
+        int[] pixels = image.pixels;
+        byte[] row = this.row;
+        int x0, dx, y, blockWidth, blockHeight;
+        if (interlaced) {
+            x0 = PASS_X[pass];
+            dx = PASS_DX[pass];
+            y = PASS_Y[pass] + passRow * PASS_DY[pass];
+            blockWidth = PASS_W[pass];
+            blockHeight = PASS_H[pass];
+        } else {
+            x0 = 0;
+            dx = 1;
+            y = passRow;
+            blockWidth = 1;
+            blockHeight = 1;
+        }
+        int offset = y * width, color, x, i, s;
+        int bottom = Math.min(height, y + blockHeight);
+        for (i = 0, x = x0; i < passWidth; i++, x += dx) {
+            switch (colorType) {
+                case 0:
+                    s = sample(row, i);
+                    color = (depth < 8) ? (s * 255 / ((1 << depth) - 1)) : ((depth == 16) ? (s >> 8) : s);
+                    color = (s == transparentGray) ? (color * 0x010101) : (0xff000000 | (color * 0x010101));
+                    break;
+                case 2:
+                    if (depth == 16) {
+                        color = ((row[1 + i * 6] & 0xff) << 16) | ((row[3 + i * 6] & 0xff) << 8) | (row[5 + i * 6] & 0xff);
+                    } else {
+                        color = ((row[1 + i * 3] & 0xff) << 16) | ((row[2 + i * 3] & 0xff) << 8) | (row[3 + i * 3] & 0xff);
+                    }
+                    if (color != transparentRGB) {
+                        color |= 0xff000000;
+                    }
+                    break;
+                case 3:
+                    color = (palette != null) ? palette[sample(row, i)] : 0;
+                    break;
+                case 4:
+                    if (depth == 16) {
+                        color = ((row[3 + i * 4] & 0xff) << 24) | ((row[1 + i * 4] & 0xff) * 0x010101);
+                    } else {
+                        color = ((row[2 + i * 2] & 0xff) << 24) | ((row[1 + i * 2] & 0xff) * 0x010101);
+                    }
+                    break;
+                default:
+                    if (depth == 16) {
+                        color = ((row[7 + i * 8] & 0xff) << 24) | ((row[1 + i * 8] & 0xff) << 16) |
+                                ((row[3 + i * 8] & 0xff) << 8) | (row[5 + i * 8] & 0xff);
+                    } else {
+                        color = ((row[4 + i * 4] & 0xff) << 24) | ((row[1 + i * 4] & 0xff) << 16) |
+                                ((row[2 + i * 4] & 0xff) << 8) | (row[3 + i * 4] & 0xff);
+                    }
+                    break;
+            }
+            if ((blockWidth == 1) && (blockHeight == 1)) {
+                pixels[offset + x] = color;
+            } else {
+                //// spread the pixel over its block until later passes refine it
+                int right = Math.min(width, x + blockWidth);
+                for (int by = y; by < bottom; by++) {
+                    for (int j = by * width + x, end = by * width + right; j < end; j++) {
+                        pixels[j] = color;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns sample i of a gray or palette row, of any depth.
+     */
+    private int sample(byte[] row, int i) {
+        switch (depth) {
+            case 16:
+                return ((row[1 + (i << 1)] & 0xff) << 8) | (row[2 + (i << 1)] & 0xff);
+            case 8:
+                return row[1 + i] & 0xff;
+            default:
+                int bit = i * depth;
+                return ((row[1 + (bit >> 3)] & 0xff) >> (8 - depth - (bit & 7))) & ((1 << depth) - 1);
+        }
+    }
+
+    /**
+     * Reports the rows decoded since the last report.
+     */
+    private void report() {
+        int bottom;
+        if (interlaced) {
+            //// the blocks of a pass cover every row above its next one
+            bottom = (pass >= 7) ? height : Math.min(height, PASS_Y[pass] + passRow * PASS_DY[pass]);
+        } else {
+            bottom = (pass >= 7) ? height : passRow;
+        }
+        if (bottom > reported) {
+            image.updatePixels(0, reported, width, bottom - reported);
+            if (progress != null) {
+                progress.rows(image, reported, bottom);
+            }
+            reported = bottom;
+        }
+    }
+
+    private void skip(int length) throws IOException {
+        while (length > 0) {
+            int skipped = (int) in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
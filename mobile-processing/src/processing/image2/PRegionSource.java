@@ -0,0 +1,110 @@
+package processing.image2;
+
+/**
+ * Android port of the Mobile Processing project - http://mobile.processing.org
+ * 
+ * The author of Mobile Processing is Francis Li (mail@francisli.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.graphics.Bitmap.Config;
+
+/**
+ * Supplies the tiles of a PTiledImage by decoding regions of an image file
+ * with the BitmapRegionDecoder of Android 2.3.3 and later. The library is
+ * built against Android 1.5, so the decoder is looked up when a source is
+ * created, and creating one on an older system throws an IOException.
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class PRegionSource implements PTiledImage.Source {
+
+    private final Object decoder;
+    private final Method decodeRegion;
+    private final BitmapFactory.Options options;
+
+    /** Size of the whole image. */
+    public final int width;
+    public final int height;
+
+    public PRegionSource(String filename) throws IOException {
+        try {
+            Class<?> type = Class.forName("android.graphics.BitmapRegionDecoder");
+            decoder = type.getMethod("newInstance", String.class, boolean.class).invoke(null, filename, Boolean.FALSE);
+            if (decoder == null) {
+                throw new IOException("Unsupported image format");
+            }
+            decodeRegion = type.getMethod("decodeRegion", Rect.class, BitmapFactory.Options.class);
+            width = ((Integer) type.getMethod("getWidth").invoke(decoder)).intValue();
+            height = ((Integer) type.getMethod("getHeight").invoke(decoder)).intValue();
+        } catch (ClassNotFoundException e) {
+            throw failure("Decoding image regions needs Android 2.3.3 or later", e);
+        } catch (InvocationTargetException e) {
+            throw failure("Unable to open " + filename, e.getCause());
+        } catch (NoSuchMethodException e) {
+            throw failure("Decoding image regions needs Android 2.3.3 or later", e);
+        } catch (IllegalAccessException e) {
+            throw failure("Unable to open " + filename, e);
+        }
+        options = new BitmapFactory.Options();
+        options.inPreferredConfig = Config.ARGB_8888;
+    }
+
+    /**
+     * Creates a tiled image decoding the regions of an image file as its
+     * tiles are first touched.
+     */
+    public static PTiledImage load(String filename) throws IOException {
+        PRegionSource source = new PRegionSource(filename);
+        return new PTiledImage(source.width, source.height, PTiledImage.DEFAULT_TILE_SIZE,
+                               PTiledImage.DEFAULT_RESIDENT_TILES, source, null);
+    }
+
+    public void read(int x, int y, int width, int height, int[] pixels) throws IOException {
+        Bitmap region;
+        try {
+            region = (Bitmap) decodeRegion.invoke(decoder, new Rect(x, y, x + width, y + height), options);
+        } catch (InvocationTargetException e) {
+            throw failure("Unable to decode region", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw failure("Unable to decode region", e);
+        }
+        if (region == null) {
+            throw new IOException("Unable to decode region");
+        }
+        region.getPixels(pixels, 0, width, 0, 0, width, height);
+        region.recycle();
+    }
+
+    private static IOException failure(String message, Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        IOException e = new IOException(message);
+        e.initCause(cause);
+        return e;
+    }
+}
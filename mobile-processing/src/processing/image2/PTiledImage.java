@@ -0,0 +1,411 @@
+package processing.image2;
+
+/**
+ * Android port of the Mobile Processing project - http://mobile.processing.org
+ * 
+ * The author of Mobile Processing is Francis Li (mail@francisli.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import processing.core.PCanvas;
+import processing.core.PImage;
+import processing.core.PMIDlet;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+/**
+ * An image too large to keep in one array, split into square tiles. Only a
+ * limited number of tiles are resident, in direct buffers outside the
+ * Java heap. The least recently used tile is evicted to make room for
+ * another, after being written to a cache file if it was changed. Tiles
+ * are read back from the cache file, or from the image source the first
+ * time they are touched, so a huge image is only decoded where it is
+ * looked at.
+ *
+ * Drawing visits only the tiles inside the clip, so image(img, sx, sy,
+ * swidth, sheight, dx, dy) draws a viewport onto the image. Reads and
+ * writes outside the image touch only the part inside it.
+ *
+ * Every access to the tiles is synchronized on the image, since in
+ * threaded retained mode a render thread draws it while the sketch thread
+ * reads and writes it for the next frame.
+ *
+ * @see PRegionSource
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class PTiledImage extends PImage {
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final int DEFAULT_RESIDENT_TILES = 16;
+
+    /**
+     * Supplies the pixels of tiles that were never loaded.
+     */
+    public interface Source {
+        /**
+         * Writes the pixels of the rectangle into pixels, width per row.
+         */
+        public void read(int x, int y, int width, int height, int[] pixels) throws IOException;
+    }
+
+    protected final int tileSize;
+    protected final int columns;
+    protected final int rows;
+    protected final int maxResident;
+    protected final Source source;
+    protected final File cacheDir;
+
+    private final int shift;
+    private final int mask;
+    //// resident tiles by index, least recently used first, reordered by every access
+    private final LinkedHashMap<Integer, Tile> resident;
+    //// tiles saved in the cache file
+    private final boolean[] stored;
+    private File cacheFile;
+    private RandomAccessFile cache;
+    private FileChannel channel;
+    //// pixels of one tile on the heap, for sources and for drawing
+    private final int[] scratch;
+    //// created when first drawn with a Canvas
+    private Rect clip;
+
+    private int loads;
+    private int evictions;
+
+    public PTiledImage(int width, int height) {
+        this(width, height, DEFAULT_TILE_SIZE, DEFAULT_RESIDENT_TILES, null, null);
+    }
+
+    /**
+     * Creates a tiled image reading its pixels from the source, or blank if
+     * source is null. Tiles are evicted to a file in cacheDir, or the
+     * default temporary directory if it is null. The tile size must be a
+     * power of two.
+     */
+    public PTiledImage(int width, int height, int tileSize, int maxResident, Source source, File cacheDir) {
+        super(width, height, true);
+        if ((tileSize <= 0) || ((tileSize & (tileSize - 1)) != 0)) {
+            throw new IllegalArgumentException("Tile size must be a power of two");
+        }
+        this.tileSize = tileSize;
+        this.maxResident = Math.max(1, maxResident);
+        this.source = source;
+        this.cacheDir = cacheDir;
+        shift = Integer.numberOfTrailingZeros(tileSize);
+        mask = tileSize - 1;
+        columns = (width + mask) >> shift;
+        rows = (height + mask) >> shift;
+        resident = new LinkedHashMap<Integer, Tile>(16, 0.75f, true);
+        stored = new boolean[columns * rows];
+        scratch = new int[tileSize * tileSize];
+    }
+
+    public synchronized int get(int x, int y) {
+        if ((x < 0) || (y < 0) || (x >= width) || (y >= height)) {
+            return 0;
+        }
+        return tile(x >> shift, y >> shift).pixels.get(((y & mask) << shift) + (x & mask));
+    }
+
+    public synchronized void set(int x, int y, int color) {
+        if ((x < 0) || (y < 0) || (x >= width) || (y >= height)) {
+            return;
+        }
+        Tile tile = tile(x >> shift, y >> shift);
+        tile.pixels.put(((y & mask) << shift) + (x & mask), color);
+        tile.changed = true;
+    }
+
+    public int[] get(int x, int y, int width, int height) {
+        if (PCanvas.imageMode == PMIDlet.CORNERS) {
+            width -= x;
+            height -= y;
+        }
+        width = Math.max(0, width);
+        height = Math.max(0, height);
+        //// pixels outside the image are left transparent
+        int[] area = new int[width * height];
+        getPixels(area, 0, width, x, y, width, height);
+        return area;
+    }
+
+    /**
+     * Writes a rectangle of pixels, width per row, into the image.
+     */
+    public void set(int x, int y, int width, int height, int[] pixels) {
+        set(pixels, 0, width, x, y, width, height);
+    }
+
+    public void copy(int sx, int sy, int swidth, int sheight, int dx, int dy, int dwidth, int dheight) {
+        copy(this, sx, sy, swidth, sheight, dx, dy, dwidth, dheight);
+    }
+
+    public void copy(PImage source, int sx, int sy, int swidth, int sheight, int dx, int dy, int dwidth, int dheight) {
+        if (PCanvas.imageMode == PMIDlet.CORNERS) {
+            swidth = swidth - sx;
+            sheight = sheight - sy;
+            dwidth = dwidth - dx;
+            dheight = dheight - dy;
+        }
+        if ((swidth <= 0) || (sheight <= 0) || (dwidth <= 0) || (dheight <= 0)) {
+            return;
+        }
+        int[] spixels = new int[swidth * sheight];
+        source.getPixels(spixels, 0, swidth, sx, sy, swidth, sheight);
+        if ((swidth != dwidth) || (sheight != dheight)) {
+            //// scale through PImage2, the origins being 0 both image modes read the same
+            int filter = PImage2.NEAREST;
+            if (PCanvas.imageSmooth) {
+                filter = ((swidth >= (dwidth << 1)) || (sheight >= (dheight << 1))) ? PImage2.BOX : PImage2.BILINEAR;
+            }
+            PImage2 scaled = new PImage2(dwidth, dheight);
+            scaled.copy(new PImage2(spixels, swidth, sheight), 0, 0, swidth, sheight, 0, 0, dwidth, dheight, filter);
+            spixels = scaled.pixels;
+        }
+        set(spixels, 0, dwidth, dx, dy, dwidth, dheight);
+    }
+
+    /**
+     * Returns the number of tiles loaded from the source or the cache file.
+     */
+    public synchronized int loads() {
+        return loads;
+    }
+
+    /**
+     * Returns the number of tiles evicted to make room for others.
+     */
+    public synchronized int evictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of tiles in memory.
+     */
+    public synchronized int residentTiles() {
+        return resident.size();
+    }
+
+    /**
+     * Drops the tiles and deletes the cache file. The image can not be
+     * used afterwards.
+     */
+    public synchronized void dispose() {
+        resident.clear();
+        if (channel != null) {
+            try {
+                cache.close();
+            } catch (IOException e) {
+            }
+            cacheFile.delete();
+            channel = null;
+            cache = null;
+        }
+    }
+
+    protected synchronized void draw(Canvas g, int x, int y) {
+        if (clip == null) {
+            clip = new Rect();
+        }
+        if (!g.getClipBounds(clip)) {
+            return;
+        }
+        //// the tiles under the clip
+        int left = Math.max(0, clip.left - x) >> shift;
+        int top = Math.max(0, clip.top - y) >> shift;
+        int right = Math.min(columns - 1, (Math.min(width, clip.right - x) - 1) >> shift);
+        int bottom = Math.min(rows - 1, (Math.min(height, clip.bottom - y) - 1) >> shift);
+        int tx, ty, tw, th;
+        int[] scratch = this.scratch;
+        for (int row = top; row <= bottom; row++) {
+            ty = row << shift;
+            th = Math.min(tileSize, height - ty);
+            for (int column = left; column <= right; column++) {
+                tx = column << shift;
+                tw = Math.min(tileSize, width - tx);
+                IntBuffer pixels = tile(column, row).pixels;
+                pixels.position(0);
+                pixels.get(scratch, 0, th << shift);
+                g.drawBitmap(scratch, 0, tileSize, x + tx, y + ty, tw, th, true, null);
+            }
+        }
+    }
+
+    /**
+     * Reads a rectangle of the image into pixels. Only the part inside the
+     * image is read, the rest of the rectangle in pixels is left as it was.
+     */
+    public synchronized void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        //// a column or row past the image would wrap into the next row of tiles
+        int right = Math.min(this.width, x + width), bottom = Math.min(this.height, y + height);
+        int tx, ty, column, row, left, top, w, h, i;
+        IntBuffer tile;
+        for (ty = Math.max(0, y); ty < bottom; ty = top + h) {
+            row = ty >> shift;
+            top = ty;
+            h = Math.min(bottom, (row + 1) << shift) - top;
+            for (tx = Math.max(0, x); tx < right; tx = left + w) {
+                column = tx >> shift;
+                left = tx;
+                w = Math.min(right, (column + 1) << shift) - left;
+                tile = tile(column, row).pixels;
+                for (i = 0; i < h; i++) {
+                    tile.position(((top + i) & mask) << shift | (left & mask));
+                    tile.get(pixels, offset + (top - y + i) * stride + (left - x), w);
+                }
+            }
+        }
+    }
+
+    private synchronized void set(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        //// only the part inside the image is written
+        int left = Math.max(0, x), top = Math.max(0, y);
+        int right = Math.min(this.width, x + width), bottom = Math.min(this.height, y + height);
+        int tx, ty, column, row, w, h, i;
+        Tile tile;
+        for (ty = top; ty < bottom; ty += h) {
+            row = ty >> shift;
+            h = Math.min(bottom, (row + 1) << shift) - ty;
+            for (tx = left; tx < right; tx += w) {
+                column = tx >> shift;
+                w = Math.min(right, (column + 1) << shift) - tx;
+                tile = tile(column, row);
+                for (i = 0; i < h; i++) {
+                    tile.pixels.position(((ty + i) & mask) << shift | (tx & mask));
+                    tile.pixels.put(pixels, offset + (ty - y + i) * stride + (tx - x), w);
+                }
+                tile.changed = true;
+            }
+        }
+    }
+
+    /**
+     * Returns a tile, loading it if it is not resident. A tile evicted to
+     * make room has its buffers reused.
+     */
+    private Tile tile(int column, int row) {
+        int index = row * columns + column;
+        Integer key = Integer.valueOf(index);
+        Tile tile = resident.get(key);
+        if (tile == null) {
+            tile = allocate();
+            tile.index = index;
+            tile.changed = false;
+            try {
+                load(tile, column, row);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to load tile: " + e.getMessage());
+            }
+            resident.put(key, tile);
+            loads++;
+        }
+        return tile;
+    }
+
+    private Tile allocate() {
+        if (resident.size() >= maxResident) {
+            Iterator<Tile> eldest = resident.values().iterator();
+            Tile tile = eldest.next();
+            eldest.remove();
+            evictions++;
+            if (tile.changed) {
+                try {
+                    save(tile);
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to save tile: " + e.getMessage());
+                }
+            }
+            return tile;
+        }
+        return new Tile(tileSize * tileSize);
+    }
+
+    private void load(Tile tile, int column, int row) throws IOException {
+        IntBuffer pixels = tile.pixels;
+        pixels.clear();
+        if (stored[tile.index]) {
+            ByteBuffer bytes = tile.bytes;
+            bytes.clear();
+            long position = (long) tile.index * bytes.capacity();
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, position + bytes.position()) < 0) {
+                    throw new IOException("Tile cache truncated");
+                }
+            }
+            return;
+        }
+        int x = column << shift, y = row << shift;
+        int w = Math.min(tileSize, width - x), h = Math.min(tileSize, height - y);
+        int[] scratch = this.scratch;
+        if (source != null) {
+            source.read(x, y, w, h, scratch);
+            //// spread the rows to the tile stride, last first so none is overwritten before it moves
+            if (w < tileSize) {
+                for (int i = h - 1; i > 0; i--) {
+                    System.arraycopy(scratch, i * w, scratch, i << shift, w);
+                }
+            }
+        } else {
+            Arrays.fill(scratch, 0);
+        }
+        pixels.put(scratch, 0, tileSize * tileSize);
+    }
+
+    private void save(Tile tile) throws IOException {
+        if (channel == null) {
+            cacheFile = File.createTempFile("tiles", ".cache", cacheDir);
+            cacheFile.deleteOnExit();
+            cache = new RandomAccessFile(cacheFile, "rw");
+            channel = cache.getChannel();
+        }
+        ByteBuffer bytes = tile.bytes;
+        bytes.clear();
+        long position = (long) tile.index * bytes.capacity();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes, position + bytes.position());
+        }
+        stored[tile.index] = true;
+    }
+
+    private static class Tile {
+        //// the same memory as bytes and as ints, in native order
+        final ByteBuffer bytes;
+        final IntBuffer pixels;
+        int index;
+        boolean changed;
+
+        Tile(int length) {
+            bytes = ByteBuffer.allocateDirect(length << 2).order(ByteOrder.nativeOrder());
+            pixels = bytes.asIntBuffer();
+        }
+    }
+}
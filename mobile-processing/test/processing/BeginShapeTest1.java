@@ -5,9 +5,9 @@ import processing.core.*;
  *
  * @author  Francis Li
  */
-public class BeginShapeTest1 extends PMIDlet {
+public class BeginShapeTest1 extends PHeadless {
     
-    void setup() {
+    public void setup() {
         beginShape(POINTS); 
         vertex(30, 20); 
         vertex(85, 20); 
@@ -5,9 +5,9 @@ import processing.core.*;
  *
  * @author  Francis Li
  */
-public class TriangleTest extends PMIDlet {
+public class TriangleTest extends PHeadless {
     
-    void setup() {
+    public void setup() {
         triangle(30, 75, 58, 20, 86, 75);
     }    
 }
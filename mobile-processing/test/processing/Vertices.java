@@ -5,9 +5,9 @@ import processing.core.*;
  *
  * @author  Francis Li
  */
-public class Vertices extends PMIDlet {
+public class Vertices extends PHeadless {
 
-    void setup() {
+    public void setup() {
         // Vertices 
         // by REAS <http://www.groupc.net> 
 
@@ -34,10 +34,8 @@ public class Vertices extends PMIDlet {
 
         stroke(126); 
         beginShape(LINE_STRIP); 
-        bezierVertex(60, 40); 
-        bezierVertex(160, 10); 
-        bezierVertex(170, 150); 
-        bezierVertex(60, 150); 
+        vertex(60, 40); 
+        bezierVertex(160, 10, 170, 150, 60, 150); 
         endShape(); 
 
         stroke(255); 